@@ -0,0 +1,250 @@
+package edu.cg.scene.accelerators;
+
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.accelerators.GeometryStore.Candidate;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels that process a group of lanes (4 doubles with AVX2, 8 with AVX-512)
+ * at a time, using the Vector API. The remainder of a range that doesn't fill a
+ * group goes through the scalar kernels.
+ *
+ * The lanes perform the same operations, in the same order, as the scalar code,
+ * and a swap or min/max of the scalar code becomes a comparison and a blend
+ * (so NaN values, e.g. of rays parallel to a slab, are ignored the same way).
+ * The distances are bit for bit the ones the scalar code computes.
+ *
+ * Needs --add-modules jdk.incubator.vector, both to compile and to run, so it
+ * is kept in its own source root, which the build may skip. It is only loaded
+ * by name (see IntersectionKernels.load).
+ */
+final class VectorKernels implements IntersectionKernels {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+
+	@Override
+	public void closestSphere(GeometryStore store, Ray ray, int from, int to, Candidate closest) {
+		spheres(store, ray, from, to, closest, 0);
+	}
+
+	@Override
+	public boolean anySphere(GeometryStore store, Ray ray, int from, int to, double tMax) {
+		return spheres(store, ray, from, to, null, tMax);
+	}
+
+	@Override
+	public void closestBox(GeometryStore store, Ray ray, int from, int to, Candidate closest) {
+		boxes(store, ray, from, to, closest, 0);
+	}
+
+	@Override
+	public boolean anyBox(GeometryStore store, Ray ray, int from, int to, double tMax) {
+		return boxes(store, ray, from, to, null, tMax);
+	}
+
+	// The loops keep all the vector code in one method. C2 boxes a vector that is
+	// passed to a method it doesn't inline, which costs more than the lanes save.
+
+	/**
+	 * One ray against the spheres from, ..., to - 1: offers the hits to closest,
+	 * or (if closest is null) checks for a hit before tMax.
+	 */
+	private static boolean spheres(GeometryStore store, Ray ray, int from, int to, Candidate closest, double tMax) {
+		Point o = ray.source();
+		Vec d = ray.direction();
+		double dx = d.x * 2.0, dy = d.y * 2.0, dz = d.z * 2.0;
+		int i = from;
+		for (; i + LANES <= to; i += LANES) {
+			DoubleVector ocx = DoubleVector.broadcast(SPECIES, o.x)
+					.sub(DoubleVector.fromArray(SPECIES, store.sphereX, i));
+			DoubleVector ocy = DoubleVector.broadcast(SPECIES, o.y)
+					.sub(DoubleVector.fromArray(SPECIES, store.sphereY, i));
+			DoubleVector ocz = DoubleVector.broadcast(SPECIES, o.z)
+					.sub(DoubleVector.fromArray(SPECIES, store.sphereZ, i));
+			DoubleVector B = ocx.mul(dx).add(ocy.mul(dy)).add(ocz.mul(dz));
+			DoubleVector C = ocx.mul(ocx).add(ocy.mul(ocy)).add(ocz.mul(ocz))
+					.sub(DoubleVector.fromArray(SPECIES, store.sphereR2, i));
+			DoubleVector delta = B.mul(B).sub(C.mul(4.0));
+			// Most groups miss entirely, which saves the square roots
+			if (!delta.compare(VectorOperators.GE, 0).anyTrue())
+				continue;
+			DoubleVector t = sphereRoot(B, delta);
+			if (closest == null) {
+				if (t.compare(VectorOperators.LT, tMax).anyTrue())
+					return true;
+			} else {
+				VectorMask<Double> candidates = t.compare(VectorOperators.LE, closest.t);
+				if (candidates.anyTrue())
+					offerLanes(t, candidates, store.sphereSurface, i, closest);
+			}
+		}
+		for (; i < to; ++i) {
+			double t = ScalarKernels.sphereDistance(o.x, o.y, o.z, dx, dy, dz, store, i);
+			if (closest == null) {
+				if (t < tMax)
+					return true;
+			} else if (t <= closest.t)
+				closest.offer(t, store.sphereSurface[i]);
+		}
+		return false;
+	}
+
+	/**
+	 * One ray against the boxes from, ..., to - 1, see spheres.
+	 *
+	 * The sign of the reciprocal direction picks the near and far plane of each
+	 * axis once for all the boxes, as in the scalar code. The scalar code returns
+	 * as soon as tNear > tFar or tFar < epsilon, and since tNear only grows and
+	 * tFar only shrinks, it is enough to check after the last axis. A ray that
+	 * lies on a slab plane gets NaN there, which fails the comparisons of the
+	 * blends as it fails those of the scalar code.
+	 */
+	private static boolean boxes(GeometryStore store, Ray ray, int from, int to, Candidate closest, double tMax) {
+		Point o = ray.source();
+		double invDx = ray.invDx(), invDy = ray.invDy(), invDz = ray.invDz();
+		double[] nearX = invDx < 0 ? store.boxMaxX : store.boxMinX, farX = invDx < 0 ? store.boxMinX : store.boxMaxX;
+		double[] nearY = invDy < 0 ? store.boxMaxY : store.boxMinY, farY = invDy < 0 ? store.boxMinY : store.boxMaxY;
+		double[] nearZ = invDz < 0 ? store.boxMaxZ : store.boxMinZ, farZ = invDz < 0 ? store.boxMinZ : store.boxMaxZ;
+		int i = from;
+		// C2 allocates the broadcast vectors when no group is tested after them, so
+		// they are only made for a range that fills a group
+		if (to - from >= LANES) {
+			DoubleVector tNear0 = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+			DoubleVector tFar0 = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+			for (; i + LANES <= to; i += LANES) {
+				DoubleVector near = DoubleVector.fromArray(SPECIES, nearX, i).sub(o.x).mul(invDx);
+				DoubleVector far = DoubleVector.fromArray(SPECIES, farX, i).sub(o.x).mul(invDx);
+				DoubleVector tNear = tNear0.blend(near, near.compare(VectorOperators.GT, tNear0));
+				DoubleVector tFar = tFar0.blend(far, far.compare(VectorOperators.LT, tFar0));
+				near = DoubleVector.fromArray(SPECIES, nearY, i).sub(o.y).mul(invDy);
+				far = DoubleVector.fromArray(SPECIES, farY, i).sub(o.y).mul(invDy);
+				tNear = tNear.blend(near, near.compare(VectorOperators.GT, tNear));
+				tFar = tFar.blend(far, far.compare(VectorOperators.LT, tFar));
+				near = DoubleVector.fromArray(SPECIES, nearZ, i).sub(o.z).mul(invDz);
+				far = DoubleVector.fromArray(SPECIES, farZ, i).sub(o.z).mul(invDz);
+				tNear = tNear.blend(near, near.compare(VectorOperators.GT, tNear));
+				tFar = tFar.blend(far, far.compare(VectorOperators.LT, tFar));
+
+				VectorMask<Double> miss = tNear.compare(VectorOperators.GT, tFar)
+						.or(tFar.compare(VectorOperators.LT, Ops.epsilon))
+						.or(tNear.compare(VectorOperators.LT, Ops.epsilon));
+				DoubleVector t = tNear.blend(Double.POSITIVE_INFINITY, miss);
+				if (closest == null) {
+					if (t.compare(VectorOperators.LT, tMax).anyTrue())
+						return true;
+				} else {
+					VectorMask<Double> candidates = t.compare(VectorOperators.LE, closest.t);
+					if (candidates.anyTrue())
+						offerLanes(t, candidates, store.boxSurface, i, closest);
+				}
+			}
+		}
+		for (; i < to; ++i) {
+			double t = ScalarKernels.boxDistance(o.x, o.y, o.z, invDx, invDy, invDz, store, i);
+			if (closest == null) {
+				if (t < tMax)
+					return true;
+			} else if (t <= closest.t)
+				closest.offer(t, store.boxSurface[i]);
+		}
+		return false;
+	}
+
+	// Lanes are offered in order, so ties still go to the surface that comes first
+	private static void offerLanes(DoubleVector t, VectorMask<Double> lanes, int[] surfaces, int first,
+			Candidate closest) {
+		for (int lane = lanes.firstTrue(); lane < LANES; ++lane)
+			if (lanes.laneIsSet(lane))
+				closest.offer(t.lane(lane), surfaces[first + lane]);
+	}
+
+	// The smaller root (-B - sqrt(delta)) / 2, written as (B + sqrt(delta)) * -0.5
+	// which rounds the same way. The larger root can't be below it, so the scalar
+	// min() and the test of both roots reduce to this one. A negative discriminant
+	// gives a NaN root, which fails the comparison.
+	private static DoubleVector sphereRoot(DoubleVector B, DoubleVector delta) {
+		DoubleVector t = B.add(delta.sqrt()).mul(-0.5);
+		return t.blend(Double.POSITIVE_INFINITY, t.compare(VectorOperators.GT, Ops.epsilon).not());
+	}
+
+	@Override
+	public void sphereDistances(double[] ox, double[] oy, double[] oz, double[] dx, double[] dy, double[] dz, int n,
+			GeometryStore store, int sphere, double[] t) {
+		DoubleVector cx = DoubleVector.broadcast(SPECIES, store.sphereX[sphere]);
+		DoubleVector cy = DoubleVector.broadcast(SPECIES, store.sphereY[sphere]);
+		DoubleVector cz = DoubleVector.broadcast(SPECIES, store.sphereZ[sphere]);
+		double r2 = store.sphereR2[sphere];
+		int i = 0;
+		for (; i + LANES <= n; i += LANES) {
+			DoubleVector ocx = DoubleVector.fromArray(SPECIES, ox, i).sub(cx);
+			DoubleVector ocy = DoubleVector.fromArray(SPECIES, oy, i).sub(cy);
+			DoubleVector ocz = DoubleVector.fromArray(SPECIES, oz, i).sub(cz);
+			DoubleVector B = DoubleVector.fromArray(SPECIES, dx, i).mul(2.0).mul(ocx)
+					.add(DoubleVector.fromArray(SPECIES, dy, i).mul(2.0).mul(ocy))
+					.add(DoubleVector.fromArray(SPECIES, dz, i).mul(2.0).mul(ocz));
+			DoubleVector C = ocx.mul(ocx).add(ocy.mul(ocy)).add(ocz.mul(ocz)).sub(r2);
+			sphereRoot(B, B.mul(B).sub(C.mul(4.0))).intoArray(t, i);
+		}
+		for (; i < n; ++i)
+			t[i] = ScalarKernels.sphereDistance(ox[i], oy[i], oz[i], dx[i] * 2.0, dy[i] * 2.0, dz[i] * 2.0, store,
+					sphere);
+	}
+
+	@Override
+	public void boxDistances(double[] ox, double[] oy, double[] oz, double[] dx, double[] dy, double[] dz, int n,
+			GeometryStore store, int box, double[] t) {
+		DoubleVector minX = DoubleVector.broadcast(SPECIES, store.boxMinX[box]);
+		DoubleVector minY = DoubleVector.broadcast(SPECIES, store.boxMinY[box]);
+		DoubleVector minZ = DoubleVector.broadcast(SPECIES, store.boxMinZ[box]);
+		DoubleVector maxX = DoubleVector.broadcast(SPECIES, store.boxMaxX[box]);
+		DoubleVector maxY = DoubleVector.broadcast(SPECIES, store.boxMaxY[box]);
+		DoubleVector maxZ = DoubleVector.broadcast(SPECIES, store.boxMaxZ[box]);
+		int i = 0;
+		for (; i + LANES <= n; i += LANES) {
+			Slabs slabs = new Slabs();
+			slabs.axis(DoubleVector.fromArray(SPECIES, ox, i), DoubleVector.fromArray(SPECIES, dx, i), minX, maxX);
+			slabs.axis(DoubleVector.fromArray(SPECIES, oy, i), DoubleVector.fromArray(SPECIES, dy, i), minY, maxY);
+			slabs.axis(DoubleVector.fromArray(SPECIES, oz, i), DoubleVector.fromArray(SPECIES, dz, i), minZ, maxZ);
+			slabs.distances().intoArray(t, i);
+		}
+		for (; i < n; ++i)
+			t[i] = ScalarKernels.boxDistance(ox[i], oy[i], oz[i], 1.0 / dx[i], 1.0 / dy[i], 1.0 / dz[i], store, box);
+	}
+
+	/**
+	 * The slab test of AxisAlignedBox for a batch of rays, each lane with its own
+	 * direction, and so its own reciprocal and its own near and far planes. The
+	 * miss checks are done once after the last axis, see boxes. The object doesn't
+	 * escape, so the JIT keeps it in registers.
+	 */
+	private static class Slabs {
+		DoubleVector tNear = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		DoubleVector tFar = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+
+		void axis(DoubleVector o, DoubleVector d, DoubleVector min, DoubleVector max) {
+			DoubleVector inv = DoubleVector.broadcast(SPECIES, 1.0).div(d);
+			VectorMask<Double> negative = inv.compare(VectorOperators.LT, 0);
+			DoubleVector near = min.blend(max, negative).sub(o).mul(inv);
+			DoubleVector far = max.blend(min, negative).sub(o).mul(inv);
+			tNear = tNear.blend(near, near.compare(VectorOperators.GT, tNear));
+			tFar = tFar.blend(far, far.compare(VectorOperators.LT, tFar));
+		}
+
+		DoubleVector distances() {
+			VectorMask<Double> miss = tNear.compare(VectorOperators.GT, tFar)
+					.or(tFar.compare(VectorOperators.LT, Ops.epsilon)).or(tNear.compare(VectorOperators.LT, Ops.epsilon));
+			return tNear.blend(Double.POSITIVE_INFINITY, miss);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "vector kernels (" + LANES + " lanes)";
+	}
+}
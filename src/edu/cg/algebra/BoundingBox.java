@@ -0,0 +1,207 @@
+package edu.cg.algebra;
+
+public class BoundingBox {
+	// Widens the far distance of the slab test so that rounding errors can't
+	// reject a box that the exact intersection routine of a shape would hit.
+	private static final double ROBUST_FACTOR = 1 + 1e-9;
+
+	public final double minX, minY, minZ;
+	public final double maxX, maxY, maxZ;
+
+	public BoundingBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+	}
+
+	public BoundingBox(Point minPoint, Point maxPoint) {
+		this(minPoint.x, minPoint.y, minPoint.z, maxPoint.x, maxPoint.y, maxPoint.z);
+	}
+
+	/**
+	 * Returns an empty box - the identity element of union.
+	 */
+	public static BoundingBox empty() {
+		double inf = Double.POSITIVE_INFINITY;
+		return new BoundingBox(inf, inf, inf, -inf, -inf, -inf);
+	}
+
+	public BoundingBox union(BoundingBox other) {
+		return new BoundingBox(Math.min(minX, other.minX), Math.min(minY, other.minY), Math.min(minZ, other.minZ),
+				Math.max(maxX, other.maxX), Math.max(maxY, other.maxY), Math.max(maxZ, other.maxZ));
+	}
+
+	public BoundingBox union(Point p) {
+		return new BoundingBox(Math.min(minX, p.x), Math.min(minY, p.y), Math.min(minZ, p.z), Math.max(maxX, p.x),
+				Math.max(maxY, p.y), Math.max(maxZ, p.z));
+	}
+
+	public boolean isEmpty() {
+		return minX > maxX | minY > maxY | minZ > maxZ;
+	}
+
+	/**
+	 * @return the distance from a point to the closest point of the box (0 if the
+	 *         point is in the box).
+	 */
+	public double distance(Point p) {
+		double dx = Math.max(0, Math.max(minX - p.x, p.x - maxX));
+		double dy = Math.max(0, Math.max(minY - p.y, p.y - maxY));
+		double dz = Math.max(0, Math.max(minZ - p.z, p.z - maxZ));
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	public Point minPoint() {
+		return new Point(minX, minY, minZ);
+	}
+
+	public Point maxPoint() {
+		return new Point(maxX, maxY, maxZ);
+	}
+
+	public Point center() {
+		return new Point((minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2);
+	}
+
+	// axis: 0 - x, 1 - y, 2 - z
+	public double min(int axis) {
+		return axis == 0 ? minX : (axis == 1 ? minY : minZ);
+	}
+
+	public double max(int axis) {
+		return axis == 0 ? maxX : (axis == 1 ? maxY : maxZ);
+	}
+
+	public double center(int axis) {
+		return (min(axis) + max(axis)) / 2;
+	}
+
+	public double extent(int axis) {
+		return max(axis) - min(axis);
+	}
+
+	public double surfaceArea() {
+		if (isEmpty())
+			return 0;
+		double dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	public boolean isFinite() {
+		return Double.isFinite(minX) & Double.isFinite(minY) & Double.isFinite(minZ) & Double.isFinite(maxX)
+				& Double.isFinite(maxY) & Double.isFinite(maxZ);
+	}
+
+	/**
+	 * Slab test of the ray against the box.
+	 * 
+	 * @param ray  - the ray
+	 * @param tMax - hits beyond this distance are ignored
+	 * @return the distance to the entry point of the ray into the box (may be
+	 *         negative when the ray starts inside the box) or
+	 *         Double.POSITIVE_INFINITY if the ray misses the box.
+	 */
+	public double intersect(Ray ray, double tMax) {
+		// The cached sign bits pick the near and the far plane of each slab, so the
+		// test is multiplications only, without swaps
+		Point o = ray.source();
+		double tNear = Double.NEGATIVE_INFINITY;
+		double tFar = tMax;
+
+		double t1 = ((ray.signX() == 0 ? minX : maxX) - o.x) * ray.invDx();
+		double t2 = ((ray.signX() == 0 ? maxX : minX) - o.x) * ray.invDx();
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+
+		t1 = ((ray.signY() == 0 ? minY : maxY) - o.y) * ray.invDy();
+		t2 = ((ray.signY() == 0 ? maxY : minY) - o.y) * ray.invDy();
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+		if (tNear > tFar * ROBUST_FACTOR)
+			return Double.POSITIVE_INFINITY;
+
+		t1 = ((ray.signZ() == 0 ? minZ : maxZ) - o.z) * ray.invDz();
+		t2 = ((ray.signZ() == 0 ? maxZ : minZ) - o.z) * ray.invDz();
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+
+		tFar *= ROBUST_FACTOR;
+		if (tNear > tFar || tFar < Ops.epsilon)
+			return Double.POSITIVE_INFINITY;
+		return tNear;
+	}
+
+	/**
+	 * Slab test of the part of the ray that is still searched, see Ray.tMax().
+	 */
+	public double intersect(Ray ray) {
+		return intersect(ray, ray.tMax());
+	}
+
+	/**
+	 * Same as intersect(Ray, double), but with the reciprocal of the ray direction
+	 * already computed by the caller. NaN values (a ray that lies exactly on a slab
+	 * plane) are treated conservatively as a hit on that axis. The test is slightly
+	 * conservative, so it may report hits that miss the box by a rounding error.
+	 */
+	public double intersect(double ox, double oy, double oz, double invDx, double invDy, double invDz,
+			double tMax) {
+		double tNear = Double.NEGATIVE_INFINITY;
+		double tFar = tMax;
+
+		double t1 = (minX - ox) * invDx;
+		double t2 = (maxX - ox) * invDx;
+		if (t1 > t2) {
+			double temp = t1;
+			t1 = t2;
+			t2 = temp;
+		}
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+
+		t1 = (minY - oy) * invDy;
+		t2 = (maxY - oy) * invDy;
+		if (t1 > t2) {
+			double temp = t1;
+			t1 = t2;
+			t2 = temp;
+		}
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+
+		t1 = (minZ - oz) * invDz;
+		t2 = (maxZ - oz) * invDz;
+		if (t1 > t2) {
+			double temp = t1;
+			t1 = t2;
+			t2 = temp;
+		}
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+
+		tFar *= ROBUST_FACTOR;
+		if (tNear > tFar || tFar < Ops.epsilon)
+			return Double.POSITIVE_INFINITY;
+		return tNear;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + minPoint() + " - " + maxPoint() + "]";
+	}
+}
@@ -15,7 +15,7 @@ public class Ops {
 	}
 	
 	public static Vec mult(double a, Vec v) {
-		return mult(new Vec(a), v);
+		return new Vec(a*v.x, a*v.y, a*v.z);
 	}
 	
 	public static Vec mult(Vec u, Vec v) {
@@ -23,7 +23,7 @@ public class Ops {
 	}
 	
 	public static Point mult(double a, Point p) {
-		return mult(new Point(a), p);
+		return new Point(a*p.x, a*p.y, a*p.z);
 	}
 	
 	public static Point mult(Point p1, Point p2) {
@@ -38,6 +38,21 @@ public class Ops {
 		return Math.sqrt(normSqr(v));
 	}
 	
+	/**
+	 * @return base^exponent, by repeated squaring.
+	 */
+	public static double pow(double base, int exponent) {
+		if(exponent < 0)
+			return 1 / pow(base, -exponent);
+		double res = 1;
+		for(; exponent > 0; exponent >>= 1) {
+			if((exponent & 1) != 0)
+				res *= base;
+			base *= base;
+		}
+		return res;
+	}
+	
 	public static double lengthSqr(Vec v) {
 		return normSqr(v);
 	}
@@ -47,11 +62,12 @@ public class Ops {
 	}
 	
 	public static double dist(Point p1, Point p2) {
-		return length(sub(p1, p2));
+		return Math.sqrt(distSqr(p1, p2));
 	}
 	
 	public static double distSqr(Point p1, Point p2) {
-		return lengthSqr(sub(p1, p2));
+		double dx = p1.x-p2.x, dy = p1.y-p2.y, dz = p1.z-p2.z;
+		return dx*dx + dy*dy + dz*dz;
 	}
 	
 	public static Vec normalize(Vec v) {
@@ -76,13 +92,50 @@ public class Ops {
 	
 	public static Point add(Point p, double t, Vec v) {
 		//returns p + tv;
-		return add(p, mult(t, v));
+		return new Point(p.x + t*v.x, p.y + t*v.y, p.z + t*v.z);
 	}
 	
 	public static Vec sub(Point p1, Point p2) {
 		return new Vec(p1.x-p2.x, p1.y-p2.y, p1.z-p2.z);
 	}
 	
+	// MARK: in place variants
+	// These write the result into res (which may be one of the operands) and
+	// return it, so hot loops can reuse scratch vectors instead of allocating.
+	
+	public static Vec mult(double a, Vec v, Vec res) {
+		return res.set(a*v.x, a*v.y, a*v.z);
+	}
+	
+	public static Vec mult(Vec u, Vec v, Vec res) {
+		return res.set(u.x*v.x, u.y*v.y, u.z*v.z);
+	}
+	
+	public static Vec add(Vec u, Vec v, Vec res) {
+		return res.set(u.x+v.x, u.y+v.y, u.z+v.z);
+	}
+	
+	public static Vec neg(Vec v, Vec res) {
+		return mult(-1, v, res);
+	}
+	
+	public static Vec sub(Point p1, Point p2, Vec res) {
+		return res.set(p1.x-p2.x, p1.y-p2.y, p1.z-p2.z);
+	}
+	
+	public static Point add(Point p, double t, Vec v, Point res) {
+		return res.set(p.x + t*v.x, p.y + t*v.y, p.z + t*v.z);
+	}
+	
+	public static Vec normalize(Vec v, Vec res) {
+		return mult(1.0/norm(v), v, res);
+	}
+	
+	public static Vec reflect(Vec u, Vec normal, Vec res) {
+		double a = -2*dot(u, normal);
+		return res.set(u.x + a*normal.x, u.y + a*normal.y, u.z + a*normal.z);
+	}
+	
 	public static boolean isFinite(Vec v) {
 		return Double.isFinite(v.x) & Double.isFinite(v.y) & Double.isFinite(v.z);
 	}
@@ -92,7 +145,7 @@ public class Ops {
 	}
 	
 	public static Vec reflect(Vec u, Vec normal) {
-		return add(u, mult(-2*dot(u, normal), normal));
+		return reflect(u, normal, new Vec());
 	}
 	
 	public static Vec refract(Vec u, Vec normal, double n1, double n2) {
@@ -101,22 +154,33 @@ public class Ops {
 //		throw new UnimplementedMethodException("Ops.refract(Vec, Vec, double, double)");
 		if(n1 == n2)
 			return u;
+		return refract(u, normal, n1, n2, new Vec());
+	}
+	
+	/**
+	 * The in place variant of refract(Vec, Vec, double, double). res must not be
+	 * u or normal.
+	 */
+	public static Vec refract(Vec u, Vec normal, double n1, double n2, Vec res) {
+		if(n1 == n2)
+			return res.set(u);
 		
-		double dot = dot(neg(u), normal);
-		dot *= dot;
+		// dot(neg(u), normal)
+		double cos = (-1*u.x)*normal.x + (-1*u.y)*normal.y + (-1*u.z)*normal.z;
+		double dot = cos * cos;
 		if(n1 > n2) {
 			double criticalAngle = n2 / n1;
 			criticalAngle *= criticalAngle;
 			if(1 - dot >= criticalAngle)
-				return reflect(u, normal);
+				return reflect(u, normal, res);
 		}
 		
-		Vec b = add(u, mult(dot(neg(u), normal), normal));
-		b = normalize(b);
+		Vec b = normalize(res.set(u.x + cos*normal.x, u.y + cos*normal.y, u.z + cos*normal.z), res);
 		double sin2Theta2 = (n1 * n1 * (1-dot)) / (n2*n2);
 		double cos2Theta2 = 1 - sin2Theta2;
 		double sinTheta2 = Math.sqrt(sin2Theta2);
 		double cosTheta2 = Math.sqrt(cos2Theta2);
-		return add(mult(-cosTheta2, normal), mult(sinTheta2, b));
+		return res.set(-cosTheta2*normal.x + sinTheta2*b.x, -cosTheta2*normal.y + sinTheta2*b.y,
+				-cosTheta2*normal.z + sinTheta2*b.z);
 	}
 }
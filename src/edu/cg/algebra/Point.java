@@ -17,6 +17,17 @@ public class Point {
 		this(0);
 	}
 	
+	public Point set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+	
+	public Point set(Point other) {
+		return set(other.x, other.y, other.z);
+	}
+	
 	public Point add(double t, Vec v) {
 		return Ops.add(this, t, v);
 	}
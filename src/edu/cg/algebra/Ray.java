@@ -1,18 +1,88 @@
 package edu.cg.algebra;
 
+import edu.cg.scene.samplers.PathSample;
+
 public class Ray {
 	private final Point source;
 	private final Vec direction;
 	
+	// Cached for slab tests: the reciprocal of the direction and, per axis, 1 if
+	// the direction is negative along it and 0 otherwise (so the near plane of a
+	// box is bounds[sign] and the far plane is bounds[1 - sign])
+	private double invDx, invDy, invDz;
+	private int signX, signY, signZ;
+	
+	// How far along the ray hits are still searched for (hits closer than
+	// Ops.epsilon are always ignored). Intersection routines shrink tMax as they
+	// find closer hits, so later tests can give up early.
+	private double tMax = Double.POSITIVE_INFINITY;
+	
+	// An upper bound of how much the color seen along the ray can contribute to
+	// the pixel: the largest channel of the product of the reflection and
+	// refraction coefficients along the path that spawned it (1 for primary rays)
+	private double weight = 1;
+	
+	// The random numbers the shading draws at the hits of the ray (null for shadow
+	// rays)
+	private PathSample sample = null;
+	
 	public Ray(Point source, Vec direction) {
 		this.source = source;
 		this.direction = direction.normalize();
+		initReciprocal();
 	}
 	
 	public Ray(Point p0, Point p1) {
 		this(p0, p1.sub(p0).normalize());
 	}
 	
+	/**
+	 * A ray with its own source and direction, for set(...) to reuse, so a loop
+	 * that traces many rays doesn't allocate one for each.
+	 */
+	public Ray() {
+		this(new Point(), new Vec(0, 0, 1));
+	}
+	
+	/**
+	 * Makes this ray the one new Ray(source, direction) would make, by copying
+	 * into its source and direction. Only for a ray made by Ray(), since the
+	 * other constructors share the source they are given.
+	 */
+	public Ray set(Point source, Vec direction) {
+		return set(source.x, source.y, source.z, direction.x, direction.y, direction.z);
+	}
+	
+	/**
+	 * Same as set(Point, Vec), with the coordinates of the source and direction.
+	 */
+	public Ray set(double ox, double oy, double oz, double dx, double dy, double dz) {
+		source.set(ox, oy, oz);
+		Ops.normalize(direction.set(dx, dy, dz), direction);
+		initReciprocal();
+		tMax = Double.POSITIVE_INFINITY;
+		weight = 1;
+		sample = null;
+		return this;
+	}
+	
+	/**
+	 * Makes this ray the one new Ray(p0, p1) would make (see set(Point, Vec)).
+	 */
+	public Ray set(Point p0, Point p1) {
+		return set(p0, Ops.normalize(Ops.sub(p1, p0, direction), direction));
+	}
+	
+	private void initReciprocal() {
+		Vec d = this.direction;
+		invDx = 1.0 / d.x;
+		invDy = 1.0 / d.y;
+		invDz = 1.0 / d.z;
+		signX = invDx < 0 ? 1 : 0;
+		signY = invDy < 0 ? 1 : 0;
+		signZ = invDz < 0 ? 1 : 0;
+	}
+	
 	public Point source() {
 		return source;
 	}
@@ -21,6 +91,61 @@ public class Ray {
 		return direction;
 	}
 	
+	public double invDx() {
+		return invDx;
+	}
+	
+	public double invDy() {
+		return invDy;
+	}
+	
+	public double invDz() {
+		return invDz;
+	}
+	
+	public int signX() {
+		return signX;
+	}
+	
+	public int signY() {
+		return signY;
+	}
+	
+	public int signZ() {
+		return signZ;
+	}
+	
+	public double tMax() {
+		return tMax;
+	}
+	
+	/**
+	 * Limits the search for hits to distances up to t, if t is closer than tMax.
+	 */
+	public Ray shrink(double t) {
+		if(t < tMax)
+			tMax = t;
+		return this;
+	}
+	
+	public double weight() {
+		return weight;
+	}
+	
+	public Ray initWeight(double weight) {
+		this.weight = weight;
+		return this;
+	}
+	
+	public PathSample sample() {
+		return sample;
+	}
+	
+	public Ray initSample(PathSample sample) {
+		this.sample = sample;
+		return this;
+	}
+	
 	public Point add(double t) {
 		// returns: p0 + t*direction
 		return source.add(t, direction);
@@ -30,6 +155,10 @@ public class Ray {
 		return add(hit.t());
 	}
 	
+	public Point getHittingPoint(Hit hit, Point res) {
+		return Ops.add(source, hit.t(), direction, res);
+	}
+	
 	public Ray inverse() {
 		return new Ray(source, direction.neg());
 	}
@@ -23,6 +23,17 @@ public class Vec {
 		this(0);
 	}
 	
+	public Vec set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+	
+	public Vec set(Vec other) {
+		return set(other.x, other.y, other.z);
+	}
+	
 	public double norm() {
 		return Ops.norm(this);
 	}
@@ -75,6 +86,19 @@ public class Vec {
 		return new Color(clip(x), clip(y), clip(z));
 	}
 	
+	/**
+	 * @return the packed RGB value of toColor().getRGB(), without allocating the
+	 *         Color.
+	 */
+	public int toRGB() {
+		return 0xff000000 | toByte(x) << 16 | toByte(y) << 8 | toByte(z);
+	}
+	
+	// Rounds like the float constructor of Color
+	private static int toByte(double val) {
+		return (int)(clip(val)*255 + 0.5);
+	}
+	
 	private static float clip(double val) {
 		return (float)Math.min(1, Math.max(0, val));
 	}
@@ -2,6 +2,7 @@ package edu.cg.menu.components;
 
 import java.awt.Checkbox;
 import java.awt.CheckboxGroup;
+import java.awt.Choice;
 import java.awt.ComponentOrientation;
 import java.awt.FlowLayout;
 import java.awt.Font;
@@ -16,6 +17,8 @@ import javax.swing.border.EtchedBorder;
 import edu.cg.algebra.Ops;
 import edu.cg.menu.MenuWindow;
 import edu.cg.scene.Scene;
+import edu.cg.scene.accelerators.AcceleratorType;
+import edu.cg.scene.samplers.SamplerType;
 
 @SuppressWarnings("serial")
 public class RenderingParametersSelector extends JPanel {
@@ -27,10 +30,26 @@ public class RenderingParametersSelector extends JPanel {
 	private Checkbox x1;
 	private Checkbox x2;
 	private Checkbox x3;
+	private Choice sampler;
 	
 	private Checkbox reflection;
 	private Checkbox refraction;
 	
+	private Choice accelerator;
+	private Choice packetSize;
+	private Checkbox wavefront;
+	private JFormattedTextField tileSize;
+	private JFormattedTextField minRayWeight;
+	private Checkbox russianRoulette;
+	private JFormattedTextField minLightIntensity;
+	private JFormattedTextField lightSamples;
+	private Checkbox shadowMaps;
+	private JFormattedTextField shadowMapResolution;
+	private JFormattedTextField shadowMapBias;
+	private JFormattedTextField shadowMapFilter;
+	private JFormattedTextField areaLightSamples;
+	private static final int[] PACKET_SIZES = { 1, 4, 8 };
+	
 	public RenderingParametersSelector() {
 		super();
 		
@@ -64,6 +83,14 @@ public class RenderingParametersSelector extends JPanel {
 		panel1.add(x2);
 		panel1.add(x3);
 		
+		panel1.add(new JLabel("   Sampler:"));
+		sampler = new Choice();
+		sampler.setFont(myFont);
+		for(SamplerType type : SamplerType.values())
+			sampler.add(type.toString());
+		sampler.select(SamplerType.SOBOL.ordinal());
+		panel1.add(sampler);
+		
 		
 		JPanel panel2 = new JPanel();
 		panel2.setBorder(new EtchedBorder(EtchedBorder.LOWERED, null, null));
@@ -87,6 +114,54 @@ public class RenderingParametersSelector extends JPanel {
 		panel2.add(reflection);
 		
 		panel2.add(refraction);
+		
+		panel2.add(new JLabel("   Accelerator:"));
+		accelerator = new Choice();
+		accelerator.setFont(myFont);
+		for(AcceleratorType type : AcceleratorType.values())
+			accelerator.add(type.toString());
+		accelerator.select(AcceleratorType.FLAT_BVH.ordinal());
+		panel2.add(accelerator);
+		
+		panel2.add(new JLabel("   Ray packets:"));
+		packetSize = new Choice();
+		packetSize.setFont(myFont);
+		for(int size : PACKET_SIZES)
+			packetSize.add(size == 1 ? "Off" : size + "x" + size);
+		panel2.add(packetSize);
+		
+		panel2.add(new JLabel("   "));
+		wavefront = new Checkbox("Wavefront");
+		wavefront.setFont(myFont);
+		panel2.add(wavefront);
+		
+		tileSize = addAndGetTextField("   Tile size:", 32, panel2);
+		
+		minRayWeight = addAndGetTextField("   Min ray weight:", 0.0, panel2);
+		minRayWeight.setColumns(5);
+		panel2.add(new JLabel("   "));
+		russianRoulette = new Checkbox("Russian roulette");
+		russianRoulette.setFont(myFont);
+		panel2.add(russianRoulette);
+		
+		minLightIntensity = addAndGetTextField("   Min light intensity:", 0.0, panel2);
+		minLightIntensity.setColumns(5);
+		
+		lightSamples = addAndGetTextField("   Light samples:", 0, panel2);
+		
+		panel2.add(new JLabel("   "));
+		shadowMaps = new Checkbox("Shadow maps (preview)");
+		shadowMaps.setFont(myFont);
+		panel2.add(shadowMaps);
+		
+		shadowMapResolution = addAndGetTextField("   Map size:", 512, panel2);
+		
+		shadowMapBias = addAndGetTextField("   Shadow bias:", 2.0, panel2);
+		shadowMapBias.setColumns(3);
+		
+		shadowMapFilter = addAndGetTextField("   PCF radius:", 1, panel2);
+		
+		areaLightSamples = addAndGetTextField("   Penumbra samples:", 16, panel2);
 	}
 	
 	private JFormattedTextField addAndGetTextField(String label, int value, JPanel panel) {
@@ -162,15 +237,104 @@ public class RenderingParametersSelector extends JPanel {
 			return false;
 		}
 		
+		try {
+			int tileSize = (Integer)this.tileSize.getValue();
+			if(tileSize < 1)
+				throw new RuntimeException();
+			
+			scene.initTileSize(tileSize);
+		} catch (Exception ex) {
+			String msg = "Tile size must be a positive Integer.";
+			menuWindow.log(msg);
+			JOptionPane.showMessageDialog(menuWindow, msg, "Error", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		
+		try {
+			double minRayWeight = ((Number)this.minRayWeight.getValue()).doubleValue();
+			if(minRayWeight < 0 | minRayWeight > 1)
+				throw new RuntimeException();
+			
+			scene.initMinRayWeight(minRayWeight);
+		} catch (Exception ex) {
+			String msg = "Min ray weight must be a number between 0 to 1.";
+			menuWindow.log(msg);
+			JOptionPane.showMessageDialog(menuWindow, msg, "Error", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		
+		try {
+			double minLightIntensity = ((Number)this.minLightIntensity.getValue()).doubleValue();
+			if(minLightIntensity < 0 | minLightIntensity > 1)
+				throw new RuntimeException();
+			
+			scene.initMinLightIntensity(minLightIntensity);
+		} catch (Exception ex) {
+			String msg = "Min light intensity must be a number between 0 to 1.";
+			menuWindow.log(msg);
+			JOptionPane.showMessageDialog(menuWindow, msg, "Error", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		
+		try {
+			int lightSamples = (Integer)this.lightSamples.getValue();
+			if(lightSamples < 0)
+				throw new RuntimeException();
+			
+			scene.initLightSamples(lightSamples);
+		} catch (Exception ex) {
+			String msg = "Light samples must be a non-negative Integer (0 shades all the lights).";
+			menuWindow.log(msg);
+			JOptionPane.showMessageDialog(menuWindow, msg, "Error", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		
+		scene.initShadowMaps(shadowMaps.getState());
+		
+		try {
+			int shadowMapResolution = (Integer)this.shadowMapResolution.getValue();
+			double shadowMapBias = ((Number)this.shadowMapBias.getValue()).doubleValue();
+			int shadowMapFilter = (Integer)this.shadowMapFilter.getValue();
+			if(shadowMapResolution <= 0 | shadowMapBias < 0 | shadowMapFilter < 0)
+				throw new RuntimeException();
+			
+			scene.initShadowMapResolution(shadowMapResolution);
+			scene.initShadowMapBias(shadowMapBias);
+			scene.initShadowMapFilter(shadowMapFilter);
+		} catch (Exception ex) {
+			String msg = "Map size must be a positive Integer, shadow bias a non-negative number and PCF radius a non-negative Integer.";
+			menuWindow.log(msg);
+			JOptionPane.showMessageDialog(menuWindow, msg, "Error", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		
+		try {
+			int areaLightSamples = (Integer)this.areaLightSamples.getValue();
+			if(areaLightSamples <= 0)
+				throw new RuntimeException();
+			
+			scene.initAreaLightSamples(areaLightSamples);
+		} catch (Exception ex) {
+			String msg = "Penumbra samples must be a positive Integer.";
+			menuWindow.log(msg);
+			JOptionPane.showMessageDialog(menuWindow, msg, "Error", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		
 		if(x1.getState())
 			scene.initAntiAliasingFactor(1);
 		else if(x2.getState())
 			scene.initAntiAliasingFactor(2);
 		else
 			scene.initAntiAliasingFactor(3);
+		scene.initSampler(SamplerType.values()[sampler.getSelectedIndex()]);
 
 		scene.initRenderRefarctions(refraction.getState())
-		.initRenderReflections(reflection.getState());
+		.initRenderReflections(reflection.getState())
+		.initAccelerator(AcceleratorType.values()[accelerator.getSelectedIndex()])
+		.initPacketSize(PACKET_SIZES[packetSize.getSelectedIndex()])
+		.initWavefront(wavefront.getState())
+		.initRussianRoulette(russianRoulette.getState());
 		
 		return true;
 	}
@@ -188,8 +352,27 @@ public class RenderingParametersSelector extends JPanel {
 			break;
 		}
 		
+		if(scene.getSampler() != null)
+			sampler.select(scene.getSampler().ordinal());
+		
 		recursionLevel.setValue(scene.getMaxRecursionLevel());
 		refraction.setState(scene.getRenderRefarctions());
 		reflection.setState(scene.getRenderReflections());
+		if(scene.getAccelerator() != null)
+			accelerator.select(scene.getAccelerator().ordinal());
+		for(int i = 0; i < PACKET_SIZES.length; ++i)
+			if(scene.getPacketSize() >= PACKET_SIZES[i])
+				packetSize.select(i);
+		wavefront.setState(scene.getWavefront());
+		tileSize.setValue(scene.getTileSize());
+		minRayWeight.setValue(scene.getMinRayWeight());
+		russianRoulette.setState(scene.getRussianRoulette());
+		minLightIntensity.setValue(scene.getMinLightIntensity());
+		lightSamples.setValue(scene.getLightSamples());
+		shadowMaps.setState(scene.getShadowMaps());
+		shadowMapResolution.setValue(scene.getShadowMapResolution());
+		shadowMapBias.setValue(scene.getShadowMapBias());
+		shadowMapFilter.setValue(scene.getShadowMapFilter());
+		areaLightSamples.setValue(scene.getAreaLightSamples());
 	}
 }
@@ -0,0 +1,113 @@
+package edu.cg.scene;
+
+import java.util.concurrent.Callable;
+
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.camera.PinholeCamera;
+import edu.cg.scene.camera.PrimaryRays;
+import edu.cg.scene.samplers.Sampler;
+
+/**
+ * Renders a tile with adaptive supersampling. First the first sample of each
+ * pixel is traced. Then only the pixels that lie where the image changes, which
+ * are mostly silhouettes, shadow borders and refraction edges, are refined with
+ * the following samples of their sequence, up to factor^2 samples. So a pixel
+ * takes 1 or factor^2 rays.
+ *
+ * A pixel is refined when a channel of the colors of the pixels around it
+ * (itself included) varies by more than CONTRAST. The first rays are traced
+ * over a border of a pixel around the tile too, so edges along the border of
+ * the tile are found.
+ */
+class AdaptiveTile implements Callable<int[]> {
+	// The largest change of a channel (in [0, 1]) around a pixel that isn't refined
+	private static final double CONTRAST = 1.0 / 16;
+
+	private final Scene scene;
+	private final PinholeCamera camera;
+	private final Sampler sampler;
+	private final int factor;
+	private final int imgWidth, imgHeight;
+	private final int x0, y0, width, height;
+
+	AdaptiveTile(Scene scene, PinholeCamera camera, Sampler sampler, int factor, int imgWidth, int imgHeight, int x0,
+			int y0, int width, int height) {
+		this.scene = scene;
+		this.camera = camera;
+		this.sampler = sampler;
+		this.factor = factor;
+		this.imgWidth = imgWidth;
+		this.imgHeight = imgHeight;
+		this.x0 = x0;
+		this.y0 = y0;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * @return the RGB colors of the tile, row by row.
+	 */
+	@Override
+	public int[] call() {
+		int bx0 = Math.max(0, x0 - 1), by0 = Math.max(0, y0 - 1);
+		int bWidth = Math.min(imgWidth, x0 + width + 1) - bx0;
+		int bHeight = Math.min(imgHeight, y0 + height + 1) - by0;
+		Vec[] first = scene.tracePixels(bx0, by0, bWidth, bHeight, sampler);
+
+		int[] refined = new int[width * height];
+		int numRefined = 0;
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+				if (contrasts(first, x0 + x - bx0, y0 + y - by0, bWidth, bHeight))
+					refined[numRefined++] = y * width + x;
+
+		int samples = factor * factor - 1;
+		Ray[] rays = new Ray[numRefined * samples];
+		PrimaryRays pixelRays = new PrimaryRays(samples);
+		for (int k = 0; k < numRefined; ++k) {
+			int pixel = refined[k];
+			camera.primaryRays(x0 + pixel % width, y0 + pixel / width, 1, 1, sampler, 1, samples, pixelRays);
+			for (int s = 0; s < samples; ++s)
+				rays[k * samples + s] = scene.primaryRay(pixelRays, s);
+		}
+		Vec[] colors = scene.traceRays(rays, rays.length);
+
+		int[] rgb = new int[width * height];
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+				rgb[y * width + x] = first[(y0 + y - by0) * bWidth + x0 + x - bx0].toRGB();
+		Vec sum = new Vec();
+		for (int k = 0; k < numRefined; ++k) {
+			int pixel = refined[k];
+			sum.set(first[(y0 + pixel / width - by0) * bWidth + x0 + pixel % width - bx0]);
+			for (int s = 0; s < samples; ++s)
+				Ops.add(sum, colors[k * samples + s], sum);
+			rgb[pixel] = Ops.mult(1.0 / (samples + 1), sum, sum).toRGB();
+		}
+		return rgb;
+	}
+
+	/**
+	 * @return true if a channel of the colors of the pixels around (x, y) varies by
+	 *         more than CONTRAST.
+	 */
+	private boolean contrasts(Vec[] colors, int x, int y, int width, int height) {
+		double[] min = { 1, 1, 1 }, max = { 0, 0, 0 };
+		for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ++ny)
+			for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); ++nx) {
+				Vec color = colors[ny * width + nx];
+				track(color.x, 0, min, max);
+				track(color.y, 1, min, max);
+				track(color.z, 2, min, max);
+			}
+		return max[0] - min[0] > CONTRAST || max[1] - min[1] > CONTRAST || max[2] - min[2] > CONTRAST;
+	}
+
+	private static void track(double value, int channel, double[] min, double[] max) {
+		double clipped = Math.min(1, Math.max(0, value));
+		min[channel] = Math.min(min[channel], clipped);
+		max[channel] = Math.max(max[channel], clipped);
+	}
+}
@@ -0,0 +1,105 @@
+package edu.cg.scene;
+
+import java.util.Arrays;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Point;
+import edu.cg.scene.lightSources.Light;
+
+/**
+ * Splits the bounds of the bounded surfaces of a scene into a grid of cells and keeps, for
+ * each cell, the light sources that can add at least a minimal intensity
+ * somewhere in it. The shading of a point only goes over the lights of its cell,
+ * so it skips the lights that are too far or that face away from it. The cells
+ * are in world space, so the hits of secondary rays use them too.
+ *
+ * A point out of the grid (on a plain, for example) gets all the lights.
+ */
+class LightClusters {
+	// The number of cells along each axis
+	private static final int CELLS = 8;
+
+	private final int[] allLights;
+	private final BoundingBox box;
+	// The lights of cell (i, j, k), by their index in the lights array, at i + CELLS * (j + CELLS * k)
+	private final int[][] cells;
+
+	private LightClusters(int[] allLights, BoundingBox box, int[][] cells) {
+		this.allLights = allLights;
+		this.box = box;
+		this.cells = cells;
+	}
+
+	/**
+	 * @param lights - the light sources
+	 * @param box - the bounds of the bounded surfaces of the scene
+	 * @param minIntensity - the smallest intensity of a light that is shaded
+	 */
+	static LightClusters build(Light[] lights, BoundingBox box, double minIntensity) {
+		int[] allLights = new int[lights.length];
+		for (int i = 0; i < lights.length; ++i)
+			allLights[i] = i;
+
+		if (box.isEmpty() || lights.length == 0)
+			return new LightClusters(allLights, null, null);
+
+		int[][] cells = new int[CELLS * CELLS * CELLS][];
+		int[] cellLights = new int[lights.length];
+		for (int k = 0; k < CELLS; ++k) {
+			for (int j = 0; j < CELLS; ++j) {
+				for (int i = 0; i < CELLS; ++i) {
+					BoundingBox cell = new BoundingBox(bound(box, 0, i), bound(box, 1, j), bound(box, 2, k),
+							bound(box, 0, i + 1), bound(box, 1, j + 1), bound(box, 2, k + 1));
+					int n = 0;
+					for (int l = 0; l < lights.length; ++l) {
+						if (lights[l].influences(cell, minIntensity))
+							cellLights[n++] = l;
+					}
+					cells[i + CELLS * (j + CELLS * k)] = n == lights.length ? allLights
+							: Arrays.copyOf(cellLights, n);
+				}
+			}
+		}
+		return new LightClusters(allLights, box, cells);
+	}
+
+	// The coordinate of the boundary between cell index - 1 and cell index along an axis
+	private static double bound(BoundingBox box, int axis, int index) {
+		return index == CELLS ? box.max(axis) : box.min(axis) + box.extent(axis) * index / CELLS;
+	}
+
+	/**
+	 * @return the indices of the lights that may add color at a point, in
+	 *         increasing order.
+	 */
+	int[] lightsAt(Point p) {
+		if (cells == null)
+			return allLights;
+		int i = cell(p.x, 0), j = cell(p.y, 1), k = cell(p.z, 2);
+		if (i < 0 || j < 0 || k < 0)
+			return allLights;
+		return cells[i + CELLS * (j + CELLS * k)];
+	}
+
+	// The cell of a coordinate along an axis, or -1 if it is out of the grid
+	private int cell(double coordinate, int axis) {
+		double min = box.min(axis), extent = box.extent(axis);
+		if (coordinate < min || coordinate > min + extent)
+			return -1;
+		if (extent == 0)
+			return 0;
+		return Math.min(CELLS - 1, (int) ((coordinate - min) / extent * CELLS));
+	}
+
+	/**
+	 * @return the average number of lights of a cell.
+	 */
+	double averageLights() {
+		if (cells == null)
+			return allLights.length;
+		long sum = 0;
+		for (int[] cell : cells)
+			sum += cell.length;
+		return (double) sum / cells.length;
+	}
+}
@@ -0,0 +1,50 @@
+package edu.cg.scene;
+
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ray;
+import edu.cg.scene.accelerators.Accelerator;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * Wraps the accelerator of the scene during the probe pass and counts the ray
+ * queries each thread makes, so the cost of tracing a pixel can be estimated
+ * without timing it.
+ */
+class ProbeAccelerator implements Accelerator {
+	private final Accelerator geometry;
+	private final ThreadLocal<long[]> queries = ThreadLocal.withInitial(() -> new long[1]);
+
+	ProbeAccelerator(Accelerator geometry) {
+		this.geometry = geometry;
+	}
+
+	/**
+	 * @return the number of queries made by the calling thread since the last
+	 *         reset.
+	 */
+	long queries() {
+		return queries.get()[0];
+	}
+
+	void reset() {
+		queries.get()[0] = 0;
+	}
+
+	@Override
+	public Hit closestHit(Ray ray) {
+		++queries.get()[0];
+		return geometry.closestHit(ray);
+	}
+
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		++queries.get()[0];
+		return geometry.isOccluded(ray, tMax);
+	}
+
+	@Override
+	public Surface occluder(Ray ray, double tMax) {
+		++queries.get()[0];
+		return geometry.occluder(ray, tMax);
+	}
+}
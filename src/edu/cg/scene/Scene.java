@@ -1,23 +1,40 @@
 package edu.cg.scene;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
 
 import edu.cg.Logger;
 import edu.cg.UnimplementedMethodException;
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Hit;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Ray;
 import edu.cg.algebra.Vec;
+import edu.cg.scene.TileScheduler.Tile;
+import edu.cg.scene.accelerators.Accelerator;
+import edu.cg.scene.accelerators.AcceleratorType;
+import edu.cg.scene.accelerators.CompositeAccelerator;
+import edu.cg.scene.accelerators.LinearAccelerator;
+import edu.cg.scene.accelerators.RayPacket;
+import edu.cg.scene.accelerators.VoxelWorld;
 import edu.cg.scene.camera.PinholeCamera;
+import edu.cg.scene.camera.PrimaryRays;
+import edu.cg.scene.lightSources.AreaLight;
+import edu.cg.scene.lightSources.DirectionalLight;
 import edu.cg.scene.lightSources.Light;
+import edu.cg.scene.lightSources.LightTree;
+import edu.cg.scene.samplers.PathSample;
+import edu.cg.scene.samplers.Sampler;
+import edu.cg.scene.samplers.SamplerType;
+import edu.cg.scene.objects.Shading;
 import edu.cg.scene.objects.Shape;
 import edu.cg.scene.objects.Surface;
 
@@ -27,6 +44,20 @@ public class Scene {
 	private int antiAliasingFactor = 1; // gets the values of 1, 2 and 3
 	private boolean renderRefarctions = false;
 	private boolean renderReflections = false;
+	private AcceleratorType accelerator = AcceleratorType.FLAT_BVH;
+	private int packetSize = 1; // the side of the square packets of primary rays, 1 traces single rays
+	private boolean wavefront = false; // traces the bounces of a tile breadth first
+	private int tileSize = 32; // the side of the square tiles the render threads take from each other
+	private SamplerType sampler = SamplerType.SOBOL; // the sample sequence of anti aliasing
+	private double minRayWeight = 0; // secondary rays that can contribute less are skipped
+	private boolean russianRoulette = false; // traces some of the light secondary rays, with a larger weight
+	private double minLightIntensity = 0; // lights that add less at a point are culled from its shading, 0 culls only the lights that add nothing
+	private int lightSamples = 0; // the point lights shaded at a hit, chosen from a light tree, 0 shades all of them
+	private boolean shadowMaps = false; // looks the shadows of directional lights up in maps, for previews
+	private int shadowMapResolution = 512; // the texels along each side of a shadow map
+	private double shadowMapBias = 2; // how deep (in texels) behind the surface in a shadow map a point is still lit
+	private int shadowMapFilter = 1; // the radius (in texels) of the filter of shadow map lookups
+	private int areaLightSamples = 16; // the extra shadow rays to an area light at a point in its penumbra
 
 	private PinholeCamera camera;
 	private Vec ambient = new Vec(1, 1, 1); // white
@@ -85,6 +116,76 @@ public class Scene {
 		return this;
 	}
 
+	public Scene initAccelerator(AcceleratorType accelerator) {
+		this.accelerator = accelerator;
+		return this;
+	}
+
+	public Scene initPacketSize(int packetSize) {
+		this.packetSize = packetSize;
+		return this;
+	}
+
+	public Scene initWavefront(boolean wavefront) {
+		this.wavefront = wavefront;
+		return this;
+	}
+
+	public Scene initTileSize(int tileSize) {
+		this.tileSize = tileSize;
+		return this;
+	}
+
+	public Scene initSampler(SamplerType sampler) {
+		this.sampler = sampler;
+		return this;
+	}
+
+	public Scene initMinRayWeight(double minRayWeight) {
+		this.minRayWeight = minRayWeight;
+		return this;
+	}
+
+	public Scene initRussianRoulette(boolean russianRoulette) {
+		this.russianRoulette = russianRoulette;
+		return this;
+	}
+
+	public Scene initMinLightIntensity(double minLightIntensity) {
+		this.minLightIntensity = minLightIntensity;
+		return this;
+	}
+
+	public Scene initLightSamples(int lightSamples) {
+		this.lightSamples = lightSamples;
+		return this;
+	}
+
+	public Scene initShadowMaps(boolean shadowMaps) {
+		this.shadowMaps = shadowMaps;
+		return this;
+	}
+
+	public Scene initShadowMapResolution(int shadowMapResolution) {
+		this.shadowMapResolution = shadowMapResolution;
+		return this;
+	}
+
+	public Scene initShadowMapBias(double shadowMapBias) {
+		this.shadowMapBias = shadowMapBias;
+		return this;
+	}
+
+	public Scene initShadowMapFilter(int shadowMapFilter) {
+		this.shadowMapFilter = shadowMapFilter;
+		return this;
+	}
+
+	public Scene initAreaLightSamples(int areaLightSamples) {
+		this.areaLightSamples = areaLightSamples;
+		return this;
+	}
+
 	// MARK: getters
 	public String getName() {
 		return name;
@@ -106,19 +207,268 @@ public class Scene {
 		return renderReflections;
 	}
 
+	public AcceleratorType getAccelerator() {
+		return accelerator;
+	}
+
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	public boolean getWavefront() {
+		return wavefront;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public SamplerType getSampler() {
+		return sampler;
+	}
+
+	public double getMinRayWeight() {
+		return minRayWeight;
+	}
+
+	public boolean getRussianRoulette() {
+		return russianRoulette;
+	}
+
+	public double getMinLightIntensity() {
+		return minLightIntensity;
+	}
+
+	public int getLightSamples() {
+		return lightSamples;
+	}
+
+	public boolean getShadowMaps() {
+		return shadowMaps;
+	}
+
+	public int getShadowMapResolution() {
+		return shadowMapResolution;
+	}
+
+	public double getShadowMapBias() {
+		return shadowMapBias;
+	}
+
+	public int getShadowMapFilter() {
+		return shadowMapFilter;
+	}
+
+	public int getAreaLightSamples() {
+		return areaLightSamples;
+	}
+
 	@Override
 	public String toString() {
 		String endl = System.lineSeparator();
 		return "Camera: " + camera + endl + "Ambient: " + ambient + endl + "Background Color: " + backgroundColor + endl
 				+ "Max recursion level: " + maxRecursionLevel + endl + "Anti aliasing factor: " + antiAliasingFactor
-				+ endl + "Light sources:" + endl + lightSources + endl + "Surfaces:" + endl + surfaces;
+				+ endl + "Accelerator: " + accelerator + endl
+				+ "Packet size: " + packetSize + endl
+				+ "Wavefront: " + wavefront + endl
+				+ "Tile size: " + tileSize + endl
+				+ "Sampler: " + sampler + endl
+				+ "Min ray weight: " + minRayWeight + endl
+				+ "Russian roulette: " + russianRoulette + endl
+				+ "Min light intensity: " + minLightIntensity + endl
+				+ "Light samples: " + lightSamples + endl
+				+ "Shadow maps: " + shadowMaps + endl
+				+ "Shadow map resolution: " + shadowMapResolution + endl
+				+ "Shadow map bias: " + shadowMapBias + endl
+				+ "Shadow map filter: " + shadowMapFilter + endl
+				+ "Area light samples: " + areaLightSamples + endl
+				+ "Light sources:" + endl
+				+ lightSources + endl + "Surfaces:" + endl + surfaces;
+	}
+
+	// Scratch of the shading of a render thread, so tracing a pixel doesn't allocate
+	private static class ShadingScratch {
+		final Vec color = new Vec(), specular = new Vec(), v = new Vec(), r = new Vec();
+		// The probability of a light chosen from the light tree
+		final double[] pdf = new double[1];
+		// The shaded point, the ray to the light being shaded, its intensity there and
+		// a shadow ray to a sample point of an area light
+		final Point point = new Point();
+		final Ray toLight = new Ray(), toSample = new Ray();
+		final Vec intensity = new Vec();
+		// The direction of a reflected or refracted ray
+		final Vec direction = new Vec();
+		// The primary rays of a tile
+		PrimaryRays primaryRays = null;
+		// The rays traced at each recursion level of the pixel being traced
+		PathLevel[] levels = new PathLevel[0];
+
+		PathLevel level(int recursionLevel) {
+			if (recursionLevel >= levels.length) {
+				levels = Arrays.copyOf(levels, recursionLevel + 1);
+				for (int i = 0; i < levels.length; ++i)
+					if (levels[i] == null)
+						levels[i] = new PathLevel();
+			}
+			return levels[recursionLevel];
+		}
+
+		PrimaryRays primaryRays(int capacity) {
+			if (primaryRays == null || primaryRays.capacity() < capacity)
+				primaryRays = new PrimaryRays(capacity);
+			return primaryRays;
+		}
 	}
 
-	private transient ExecutorService executor = null;
+	// The ray traced at a recursion level, its path sample, the color seen along it
+	// and the colors seen along its reflected and refracted rays (the rays of the
+	// next level)
+	private static class PathLevel {
+		final Ray ray = new Ray();
+		final PathSample sample = new PathSample();
+		final Vec color = new Vec(), reflected = new Vec(), refracted = new Vec();
+	}
+
+	private static final ThreadLocal<ShadingScratch> SCRATCH = ThreadLocal.withInitial(ShadingScratch::new);
+
+	// The probe pass traces one pixel out of each block of PROBE_STRIDE x PROBE_STRIDE pixels
+	private static final int PROBE_STRIDE = 8;
+
+	// The first shadow rays to an area light at a point, on a jittered grid of AREA_FIRST_PASS x AREA_FIRST_PASS
+	private static final int AREA_FIRST_PASS = 2;
+
 	private transient Logger logger = null;
+	// Unit boxes on the integer lattice are voxelized, other bounded surfaces are kept in a
+	// spatial structure and unbounded ones (plains) are tested one by one
+	private transient Accelerator geometry = null;
+
+	// The light sources in the order of lightSources, set by compile()
+	private transient Light[] lights = null;
+	// The lights that may add color in each region of the scene, set by compile()
+	private transient LightClusters lightClusters = null;
+	// The point lights and spotlights that are sampled rather than all shaded, set by compile(),
+	// or null if lightSamples is 0 or not smaller than their number
+	private transient LightTree lightTree = null;
+	// The bounds of the bounded surfaces, set by compile()
+	private transient BoundingBox bounds = null;
+	// The shadow map of each directional light in preview mode (null elsewhere), set for the render
+	// and kept for the next renders until the geometry changes
+	private transient ShadowMap[] lightShadowMaps = null;
+	// The surfaces and their bounds as of the last compile(), and the number of times they changed
+	// since, which the shadow maps are keyed on
+	private transient Surface[] preparedSurfaces = null;
+	private transient BoundingBox[] preparedBounds = null;
+	private transient int geometryVersion = 0;
+
+	private transient int imgWidth, imgHeight;
+	// Places the samples of anti aliasing and draws the random numbers of their paths, set for the render
+	private transient Sampler pixelSampler = null;
+	// The number of primary rays the render traced, to report the savings of adaptive supersampling
+	private transient LongAdder primaryRayCount = null;
+	// The number of secondary rays the render traced and skipped for their weight
+	private transient LongAdder secondaryRayCount = null, skippedRayCount = null;
+	// The surface that last blocked a shadow ray to each light, per render thread. Neighboring
+	// points are usually in the shadow of the same surface, so it is tested before the full query.
+	private transient ThreadLocal<Surface[]> occluderCache = null;
+	// The shadow rays tested against a cached occluder and the ones it blocked
+	private transient LongAdder occluderCacheTests = null, occluderCacheHits = null;
+	// The points shaded by area lights, the ones in a penumbra and the shadow rays traced to area lights
+	private transient LongAdder areaLightTests = null, penumbraTests = null, areaShadowRays = null;
 
 	private void initSomeFields(int imgWidth, int imgHeight, Logger logger) {
 		this.logger = logger;
+		this.imgWidth = imgWidth;
+		this.imgHeight = imgHeight;
+		this.primaryRayCount = new LongAdder();
+		this.secondaryRayCount = new LongAdder();
+		this.skippedRayCount = new LongAdder();
+		this.occluderCache = ThreadLocal.withInitial(() -> new Surface[lights.length]);
+		this.occluderCacheTests = new LongAdder();
+		this.occluderCacheHits = new LongAdder();
+		this.areaLightTests = new LongAdder();
+		this.penumbraTests = new LongAdder();
+		this.areaShadowRays = new LongAdder();
+		this.pixelSampler = (sampler == null ? SamplerType.SOBOL : sampler)
+				.create(antiAliasingFactor * antiAliasingFactor);
+		compile();
+		logger.log("Culled the light sources to " + String.format("%.2f", lightClusters.averageLights()) + " of "
+				+ lights.length + " per light cluster.");
+		if (lightTree != null)
+			logger.log("Sampling " + lightSamples + " of the " + lightTree.size()
+					+ " point lights at each hit from a light tree of depth " + lightTree.depth() + ".");
+		buildAccelerationStructure();
+	}
+
+	/**
+	 * Prepares the scene for rendering: the surfaces and light sources precompute
+	 * what they derive from their parameters (normals, normalized directions, the
+	 * ambient color of each material), so the render threads only read shared
+	 * state. Every render compiles the scene before its threads start, so changes
+	 * to the surfaces and lights (e.g. a moved sphere) are picked up by the next
+	 * render. Calling it directly is only needed to intersect the shapes or shade
+	 * with the lights outside a render.
+	 */
+	public Scene compile() {
+		for (Surface surface : surfaces)
+			surface.compile(this.ambient);
+		for (Light light : lightSources)
+			light.compile();
+		lights = lightSources.toArray(new Light[lightSources.size()]);
+		bounds = BoundingBox.empty();
+		Surface[] prepared = surfaces.toArray(new Surface[surfaces.size()]);
+		BoundingBox[] surfaceBounds = new BoundingBox[prepared.length];
+		for (int i = 0; i < prepared.length; ++i) {
+			surfaceBounds[i] = prepared[i].bounds();
+			if (surfaceBounds[i] != null && surfaceBounds[i].isFinite())
+				bounds = bounds.union(surfaceBounds[i]);
+		}
+		// A surface that is added, removed or moved (in place or through its initializers)
+		// changes the list or the bounds. Plains have no initializers.
+		if (!sameGeometry(prepared, surfaceBounds))
+			++geometryVersion;
+		preparedSurfaces = prepared;
+		preparedBounds = surfaceBounds;
+		lightClusters = LightClusters.build(lights, bounds, minLightIntensity);
+		LightTree tree = lightSamples > 0 ? new LightTree(lights) : null;
+		lightTree = tree != null && tree.size() > lightSamples ? tree : null;
+		return this;
+	}
+
+	private boolean sameGeometry(Surface[] prepared, BoundingBox[] surfaceBounds) {
+		if (preparedSurfaces == null || preparedSurfaces.length != prepared.length)
+			return false;
+		for (int i = 0; i < prepared.length; ++i) {
+			if (preparedSurfaces[i] != prepared[i])
+				return false;
+			BoundingBox a = preparedBounds[i], b = surfaceBounds[i];
+			if (a == null || b == null ? a != b
+					: a.minX != b.minX || a.minY != b.minY || a.minZ != b.minZ || a.maxX != b.maxX
+							|| a.maxY != b.maxY || a.maxZ != b.maxZ)
+				return false;
+		}
+		return true;
+	}
+
+	private void buildAccelerationStructure() {
+		List<Surface> bounded = new ArrayList<>();
+		List<Surface> unbounded = new ArrayList<>();
+		for (Surface surface : surfaces) {
+			if (surface.bounds() != null)
+				bounded.add(surface);
+			else
+				unbounded.add(surface);
+		}
+		long start = System.currentTimeMillis();
+		AcceleratorType type = accelerator == null ? AcceleratorType.FLAT_BVH : accelerator;
+		// The linear type is kept as a plain per-surface reference, without voxelization
+		List<Surface> rest = new ArrayList<>();
+		VoxelWorld voxels = type == AcceleratorType.LINEAR ? null : VoxelWorld.voxelize(bounded, rest);
+		if (voxels == null) {
+			geometry = new CompositeAccelerator(surfaces, type.build(bounded), new LinearAccelerator(unbounded));
+		} else {
+			geometry = new CompositeAccelerator(surfaces, voxels, type.build(rest), new LinearAccelerator(unbounded));
+		}
+		logger.log("Built " + geometry + " in " + (System.currentTimeMillis() - start) + "ms.");
 	}
 
 	public BufferedImage render(int imgWidth, int imgHeight, double viewPlainWidth, Logger logger)
@@ -126,112 +476,783 @@ public class Scene {
 		// This method is invoked each time Render Scene button is invoked.
 		initSomeFields(imgWidth, imgHeight, logger);
 
+		long startTime = System.currentTimeMillis();
 		BufferedImage img = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
 		camera.initResolution(imgHeight, imgWidth, viewPlainWidth);
 		int nThreads = Runtime.getRuntime().availableProcessors();
 		nThreads = nThreads < 2 ? 2 : nThreads;
 		this.logger.log("Intitialize executor. Using " + nThreads + " threads to render " + name);
-		executor = Executors.newFixedThreadPool(nThreads);
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
 
-		@SuppressWarnings("unchecked")
-		Future<Color>[][] futures = (Future<Color>[][]) (new Future[imgHeight][imgWidth]);
+		buildShadowMaps(pool);
 
-		this.logger.log("Starting to shoot " + (imgHeight * imgWidth * antiAliasingFactor * antiAliasingFactor)
+		this.logger.log("Starting to shoot up to " + (imgHeight * imgWidth * antiAliasingFactor * antiAliasingFactor)
 				+ " rays over " + name);
 
-		for (int y = 0; y < imgHeight; ++y)
-			for (int x = 0; x < imgWidth; ++x)
-				futures[y][x] = calcColor(x, y);
+		List<Tile> tiles = TileScheduler.split(imgWidth, imgHeight, tileSize);
+		probeCosts(pool, tiles);
+		secondaryRayCount.reset();
+		skippedRayCount.reset();
+		occluderCacheTests.reset();
+		occluderCacheHits.reset();
+		areaLightTests.reset();
+		penumbraTests.reset();
+		areaShadowRays.reset();
+		TileScheduler.order(tiles);
+		this.logger.log("Rendering " + tiles.size() + " tiles of up to " + tileSize + "x" + tileSize + " pixels.");
+		long renderStart = System.currentTimeMillis();
+		pool.invoke(new TileScheduler(tiles, 0, tiles.size(), this::renderTile, img));
+		logSupersampling(imgWidth * imgHeight, System.currentTimeMillis() - renderStart);
+		this.logger.log("Traced " + secondaryRayCount.sum() + " secondary rays and skipped " + skippedRayCount.sum()
+				+ " that could contribute less than " + minRayWeight + ".");
+		long cacheTests = occluderCacheTests.sum(), cacheHits = occluderCacheHits.sum();
+		this.logger.log("The cached occluders blocked " + cacheHits + " of the " + cacheTests
+				+ " shadow rays tested against them" + (cacheTests == 0 ? "."
+						: String.format(" (%.1f%%).", 100.0 * cacheHits / cacheTests)));
+		logAreaLights();
+
+		pool.shutdown();
+
+		this.logger.log("Ray tracing of " + name + " has been completed in "
+				+ (System.currentTimeMillis() - startTime) + "ms.");
 
-		this.logger.log("Done shooting rays.");
-		this.logger.log("Wating for results...");
+		this.logger = null;
+		geometry = null;
 
-		for (int y = 0; y < imgHeight; ++y)
-			for (int x = 0; x < imgWidth; ++x) {
-				Color color = futures[y][x].get();
-				img.setRGB(x, y, color.getRGB());
+		return img;
+	}
+
+	/**
+	 * Logs the number of primary rays adaptive supersampling traced, and how many
+	 * rays and how much time it saved compared to uniform supersampling, assuming
+	 * the same cost per primary ray.
+	 */
+	private void logSupersampling(int pixels, long millis) {
+		if (antiAliasingFactor <= 1)
+			return;
+		long rays = primaryRayCount.sum();
+		long uniform = (long) pixels * antiAliasingFactor * antiAliasingFactor;
+		this.logger.log(String.format("Adaptive supersampling traced %d primary rays (%.2f per pixel) in %dms."
+				+ " Uniform x%d supersampling would trace %d, %.0f%% more, and take about %dms more.", rays,
+				(double) rays / pixels, millis, antiAliasingFactor, uniform, 100.0 * (uniform - rays) / rays,
+				millis * (uniform - rays) / rays));
+	}
+
+	/**
+	 * Logs how many of the points shaded by area lights were in a penumbra, and
+	 * how many shadow rays the adaptive sampling traced compared to tracing all the
+	 * samples at every point.
+	 */
+	private void logAreaLights() {
+		long tests = areaLightTests.sum();
+		if (tests == 0)
+			return;
+		long rays = areaShadowRays.sum();
+		int grid = penumbraGrid();
+		long uniform = tests * (AREA_FIRST_PASS * AREA_FIRST_PASS + grid * grid);
+		this.logger.log(String.format("%d of the %d points shaded by area lights (%.1f%%) were in a penumbra."
+				+ " Traced %d shadow rays to area lights, %.0f%% fewer than sampling all of them everywhere.",
+				penumbraTests.sum(), tests, 100.0 * penumbraTests.sum() / tests, rays, 100.0 * (uniform - rays) / uniform));
+	}
+
+	/**
+	 * In preview mode, traces the shadow maps of the directional lights, unless
+	 * the previous render left matching ones. Otherwise all the shadow rays are
+	 * traced.
+	 */
+	private void buildShadowMaps(ForkJoinPool pool) {
+		ShadowMap[] previous = lightShadowMaps;
+		lightShadowMaps = new ShadowMap[lights.length];
+		if (!shadowMaps || bounds.isEmpty())
+			return;
+		long startTime = System.currentTimeMillis();
+		int traced = 0, kept = 0;
+		for (int i = 0; i < lights.length; ++i) {
+			if (!(lights[i] instanceof DirectionalLight))
+				continue;
+			Vec direction = ((DirectionalLight) lights[i]).getDirection();
+			ShadowMap map = previous != null && i < previous.length ? previous[i] : null;
+			if (map != null && map.matches(geometryVersion, direction, bounds, shadowMapResolution, shadowMapBias,
+					shadowMapFilter)) {
+				++kept;
+			} else {
+				map = new ShadowMap(geometryVersion, direction, bounds, shadowMapResolution, shadowMapBias,
+						shadowMapFilter, geometry, pool);
+				++traced;
 			}
+			lightShadowMaps[i] = map;
+		}
+		this.logger.log("Traced " + traced + " shadow maps of " + shadowMapResolution + "x" + shadowMapResolution
+				+ " texels in " + (System.currentTimeMillis() - startTime) + "ms and kept " + kept
+				+ " from the previous render.");
+	}
 
-		executor.shutdown();
+	/**
+	 * @return the fraction of a light that reaches a point according to its shadow
+	 *         map, or -1 if the shadow ray to the light should be traced.
+	 */
+	private double shadowMapVisibility(int lightIndex, Point point) {
+		ShadowMap map = lightShadowMaps[lightIndex];
+		return map == null ? -1 : map.visibility(point);
+	}
 
-		this.logger.log("Ray tracing of " + name + " has been completed.");
+	/**
+	 * Estimates the cost of each tile by tracing one pixel out of each
+	 * PROBE_STRIDE x PROBE_STRIDE block of it and counting the ray queries (closest
+	 * hits and shadow rays) the pixels make, scaled to the area of the tile.
+	 */
+	private void probeCosts(ForkJoinPool pool, List<Tile> tiles) {
+		long startTime = System.currentTimeMillis();
+		Accelerator accelerator = geometry;
+		ProbeAccelerator probe = new ProbeAccelerator(accelerator);
+		geometry = probe;
+		List<ForkJoinTask<?>> probes = new ArrayList<>();
+		for (Tile tile : tiles)
+			probes.add(ForkJoinTask.adapt(() -> probeCost(probe, tile)));
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(probes)));
+		geometry = accelerator;
+		this.logger.log("Probed the cost of the tiles in " + (System.currentTimeMillis() - startTime) + "ms.");
+	}
 
-		executor = null;
-		this.logger = null;
+	private void probeCost(ProbeAccelerator probe, Tile tile) {
+		probe.reset();
+		int samples = 0;
+		for (int y = Math.min(PROBE_STRIDE, tile.height) / 2; y < tile.height; y += PROBE_STRIDE)
+			for (int x = Math.min(PROBE_STRIDE, tile.width) / 2; x < tile.width; x += PROBE_STRIDE) {
+				calcColor(tile.x + x, tile.y + y);
+				++samples;
+			}
+		tile.cost = Math.max(1, (double) probe.queries() * tile.width * tile.height / samples);
+	}
 
-		return img;
+	/**
+	 * Renders a tile, with a ray per pixel or, when anti aliasing is on, with
+	 * adaptive supersampling (see AdaptiveTile).
+	 * 
+	 * @return the RGB colors of the tile, row by row.
+	 */
+	private int[] renderTile(Tile tile) {
+		if (antiAliasingFactor > 1)
+			return new AdaptiveTile(this, camera, pixelSampler, antiAliasingFactor, imgWidth, imgHeight, tile.x, tile.y,
+					tile.width, tile.height).call();
+
+		if (packetSize <= 1 && !wavefront)
+			return traceTile(tile);
+		Vec[] colors = tracePixels(tile.x, tile.y, tile.width, tile.height, Sampler.PIXEL_POINT);
+		int[] rgb = new int[colors.length];
+		for (int i = 0; i < rgb.length; ++i)
+			rgb[i] = colors[i].toRGB();
+		return rgb;
 	}
 
-	
-	private Future<Color> calcColor(int x, int y) {
-		return executor.submit(() -> {
-			Point centerPoint = camera.transform(x, y);
-			Ray ray = new Ray(camera.getCameraPosition(), centerPoint);
-			Vec color = calcColor(ray, 0);
-			return color.toColor();
-		});
+	/**
+	 * Traces a ray per pixel of a tile, one pixel after the other, like traceRays.
+	 * The rays, their path samples and their colors are the scratch of the render
+	 * thread, so only the result is allocated.
+	 * 
+	 * @return the RGB colors of the tile, row by row.
+	 */
+	private int[] traceTile(Tile tile) {
+		int n = tile.width * tile.height;
+		primaryRayCount.add(n);
+		ShadingScratch scratch = SCRATCH.get();
+		PrimaryRays primaryRays = scratch.primaryRays(n);
+		camera.primaryRays(tile.x, tile.y, tile.width, tile.height, Sampler.PIXEL_POINT, 0, 1, primaryRays);
+		PathLevel level = scratch.level(0);
+		int[] rgb = new int[n];
+		for (int i = 0; i < n; ++i)
+			rgb[i] = calcColor(primaryRay(primaryRays, i, level.ray, level.sample), 0).toRGB();
+		return rgb;
+	}
+
+	/**
+	 * Traces the first sample of each pixel of a rectangle. Either all the
+	 * bounces of the rectangle are traced breadth first (see WavefrontTile), or the
+	 * rectangle is cut into square packets (see tracePacket), or each pixel is
+	 * traced on its own.
+	 * 
+	 * @return the colors of the rectangle, row by row.
+	 */
+	Vec[] tracePixels(int x0, int y0, int width, int height, Sampler sampler) {
+		int n = width * height;
+		PrimaryRays primaryRays = new PrimaryRays(n);
+		if (packetSize <= 1 || wavefront) {
+			camera.primaryRays(x0, y0, width, height, sampler, 0, 1, primaryRays);
+			Ray[] rays = new Ray[n];
+			for (int i = 0; i < n; ++i)
+				rays[i] = primaryRay(primaryRays, i);
+			return traceRays(rays, n);
+		}
+
+		primaryRayCount.add(n);
+
+		Vec[] colors = new Vec[n];
+		Ray[] rays = new Ray[packetSize * packetSize];
+		Vec[] packetColors = new Vec[rays.length];
+		for (int y = 0; y < height; y += packetSize)
+			for (int x = 0; x < width; x += packetSize) {
+				int packetWidth = Math.min(packetSize, width - x);
+				int packetHeight = Math.min(packetSize, height - y);
+				camera.primaryRays(x0 + x, y0 + y, packetWidth, packetHeight, sampler, 0, 1, primaryRays);
+				for (int i = 0; i < primaryRays.size(); ++i)
+					rays[i] = primaryRay(primaryRays, i);
+				tracePacket(rays, 0, primaryRays.size(), packetColors);
+				for (int i = 0; i < primaryRays.size(); ++i)
+					colors[(y + i / packetWidth) * width + x + i % packetWidth] = packetColors[i];
+			}
+		return colors;
+	}
+
+	/**
+	 * @return ray i of primaryRays, with the path sample of its pixel and sample
+	 *         index. The placement of the ray in its pixel may come from another
+	 *         sampler (e.g. Sampler.PIXEL_POINT without anti aliasing), but its
+	 *         path always draws from the sampler of the render.
+	 */
+	Ray primaryRay(PrimaryRays primaryRays, int i) {
+		return primaryRay(primaryRays, i, new Ray(), new PathSample());
+	}
+
+	/**
+	 * Same as primaryRay(PrimaryRays, int), but sets ray (see Ray.set) and sample
+	 * rather than allocating.
+	 */
+	private Ray primaryRay(PrimaryRays primaryRays, int i, Ray ray, PathSample sample) {
+		return primaryRays.ray(i, ray).initSample(
+				sample.set(pixelSampler, primaryRays.pixelX(i), primaryRays.pixelY(i), primaryRays.sampleIndex(i)));
+	}
+
+	/**
+	 * Traces rays[0], ..., rays[n - 1] as primary rays, in the order they are
+	 * given, breadth first, in packets of consecutive rays or one by one, like
+	 * tracePixels.
+	 * 
+	 * @return the color seen along each ray (copies of the scratch colors
+	 *         calcColor returns).
+	 */
+	Vec[] traceRays(Ray[] rays, int n) {
+		primaryRayCount.add(n);
+		if (wavefront)
+			return new WavefrontTile(this, geometry, lights, backgroundColor, maxRecursionLevel, rays, n).call();
+
+		Vec[] colors = new Vec[n];
+		if (packetSize > 1) {
+			int packet = packetSize * packetSize;
+			for (int from = 0; from < n; from += packet)
+				tracePacket(rays, from, Math.min(n, from + packet), colors);
+		} else {
+			for (int i = 0; i < n; ++i)
+				colors[i] = new Vec(calcColor(rays[i], 0));
+		}
+		return colors;
+	}
+
+	/**
+	 * Traces rays[from], ..., rays[to - 1] as a packet, and then their shadow rays
+	 * to each light as packets.
+	 * 
+	 * @param colors - gets the color seen along rays[i] at index i
+	 */
+	private void tracePacket(Ray[] rays, int from, int to, Vec[] colors) {
+		int n = to - from;
+		if (from > 0)
+			rays = Arrays.copyOfRange(rays, from, to);
+
+		if (maxRecursionLevel <= 0) {
+			for (int i = 0; i < n; ++i)
+				colors[from + i] = new Vec();
+			return;
+		}
+
+		Hit[] hits = new Hit[n];
+		geometry.closestHits(new RayPacket(rays, n), hits);
+
+		// blocked[i][k] tells whether light k is blocked at the hit of ray i
+		boolean[][] blocked = new boolean[n][lights.length];
+		Ray[] shadowRays = new Ray[n];
+		int[] pixels = new int[n];
+		double[] tMax = new double[n];
+		int lightIndex = 0;
+		for (Light light : lights) {
+			int m = 0;
+			for (int i = 0; i < n; ++i) {
+				if (hits[i] == null)
+					continue;
+				if (isSampled(lightIndex)) {
+					blocked[i][lightIndex] = true;
+					continue;
+				}
+				Ray toLight = light.rayToLight(rays[i].getHittingPoint(hits[i]));
+				if (!light.illuminates(toLight) || !influences(light, rays[i], toLight.source())
+						|| !isLitBy(rays[i], hits[i], toLight)) {
+					blocked[i][lightIndex] = true;
+					continue;
+				}
+				// The shading looks the shadow up in the map or samples the area of the light
+				if (!tracesShadowRay(lightIndex, toLight.source()))
+					continue;
+				tMax[m] = light.distanceTo(toLight.source());
+				if (isBlockedByCachedOccluder(lightIndex, toLight, tMax[m])) {
+					blocked[i][lightIndex] = true;
+					continue;
+				}
+				shadowRays[m] = toLight;
+				pixels[m++] = i;
+			}
+			boolean[] occluded = new boolean[m];
+			geometry.occluded(new RayPacket(shadowRays, m), tMax, occluded);
+			cacheOccluder(lightIndex, shadowRays, tMax, occluded, m);
+			for (int k = 0; k < m; ++k)
+				blocked[pixels[k]][lightIndex] = occluded[k];
+			++lightIndex;
+		}
+
+		for (int i = 0; i < n; ++i)
+			colors[from + i] = hits[i] == null ? backgroundColor : new Vec(calcColor(rays[i], hits[i], 0, blocked[i]));
+	}
+
+	private int calcColor(int x, int y) {
+		Point centerPoint = camera.transform(x, y);
+		Ray ray = new Ray(camera.getCameraPosition(), centerPoint).initSample(new PathSample(pixelSampler, x, y, 0));
+		Vec color = calcColor(ray, 0);
+		return color.toRGB();
 	}
 
 	
+	/**
+	 * Computes the color seen along a ray traced at a recursion level. The rays
+	 * and colors of the recursion are the scratch of the render thread (see
+	 * PathLevel), so the color returned is only valid until the calling thread
+	 * traces another ray at the level, and must not be changed.
+	 */
 	private Vec calcColor(Ray ray, int recusionLevel) {
 		// white color when reached to max recursion
 		if (this.maxRecursionLevel <= recusionLevel) {
-			return new Vec();
+			return SCRATCH.get().level(recusionLevel).color.set(0, 0, 0);
 		}
 
 		Hit closestHit = this.closestHit(ray);
 		if (closestHit == null) {
 			return backgroundColor;
 		}
-		Vec ka = closestHit.getSurface().Ka();
-		Vec res = ka.mult(this.ambient);
-		Point hittingPoint = ray.getHittingPoint(closestHit);
-
-
-		for (Light light : this.lightSources) {
-			Ray toLight = light.rayToLight(hittingPoint);
-			Vec Intensity = light.intensity(hittingPoint, toLight);
-			if (!isBlockedBySurface(light, toLight)) {
-				Vec color = this.calcDiffuseColor(closestHit, toLight);
-				color = color.add(calcSpecularColor(closestHit, toLight, ray));
-				res = res.add(color.mult(Intensity));
+		return calcColor(ray, closestHit, recusionLevel, null);
+	}
+
+	/**
+	 * Computes the color at the closest hit of a ray.
+	 * 
+	 * @param blocked - whether each light source (in the order of lightSources) is
+	 *                blocked at the hit, or null to trace the shadow rays here
+	 */
+	private Vec calcColor(Ray ray, Hit closestHit, int recusionLevel, boolean[] blocked) {
+		ShadingScratch scratch = SCRATCH.get();
+		PathLevel level = scratch.level(recusionLevel), next = scratch.level(recusionLevel + 1);
+		Vec res = calcLocalColor(ray, closestHit, blocked, level.color);
+		// The colors of the next level are copied before it traces the next ray
+		Vec reflected = null;
+		if (this.renderReflections) {
+			double factor = traceFactor(ray, reflectedWeight(ray, closestHit));
+			reflected = factor == 0 ? level.reflected.set(0, 0, 0)
+					: scale(calcColor(reflectedRay(ray, closestHit, next.ray, next.sample), recusionLevel + 1), factor,
+							level.reflected);
+		}
+		Vec refracted = null;
+		if (refracts(closestHit)) {
+			double factor = traceFactor(ray, refractedWeight(ray, closestHit));
+			refracted = factor == 0 ? level.refracted.set(0, 0, 0)
+					: scale(calcColor(refractedRay(ray, closestHit, next.ray, next.sample), recusionLevel + 1), factor,
+							level.refracted);
+		}
+		return combineColors(closestHit, res, reflected, refracted);
+	}
+
+	/**
+	 * Decides whether a secondary ray is traced. A ray that can contribute at
+	 * least minRayWeight is traced. A lighter ray is skipped, or, with Russian
+	 * roulette, traced with probability weight / minRayWeight and scaled by the
+	 * inverse of that probability, so the expected color is unchanged. The
+	 * roulette draws from the path sample of the ray that spawns the secondary
+	 * ray.
+	 * 
+	 * @param ray    - the ray whose hit spawns the secondary ray
+	 * @param weight - the weight of the secondary ray (see Ray.weight())
+	 * @return the factor the color seen along the ray is scaled by, or 0 if the
+	 *         ray isn't traced and contributes black.
+	 */
+	double traceFactor(Ray ray, double weight) {
+		double factor = 0;
+		if (weight >= minRayWeight && weight > 0)
+			factor = 1;
+		else if (russianRoulette && weight > 0 && ray.sample().next() * minRayWeight < weight)
+			factor = minRayWeight / weight;
+		(factor == 0 ? skippedRayCount : secondaryRayCount).increment();
+		return factor;
+	}
+
+	static Vec scale(Vec color, double factor) {
+		return factor == 1 ? color : color.mult(factor);
+	}
+
+	/**
+	 * Same as scale(Vec, double), but writes the result into res.
+	 */
+	static Vec scale(Vec color, double factor, Vec res) {
+		return factor == 1 ? res.set(color) : Ops.mult(factor, color, res);
+	}
+
+	/**
+	 * Computes the ambient, diffuse and specular color at the closest hit of a ray.
+	 * 
+	 * @param blocked - whether each light source (in the order of lightSources) is
+	 *                blocked at the hit, or null to trace the shadow rays here
+	 */
+	Vec calcLocalColor(Ray ray, Hit closestHit, boolean[] blocked) {
+		return calcLocalColor(ray, closestHit, blocked, new Vec());
+	}
+
+	/**
+	 * Same as calcLocalColor(Ray, Hit, boolean[]), but writes the color into res.
+	 */
+	private Vec calcLocalColor(Ray ray, Hit closestHit, boolean[] blocked, Vec res) {
+		Surface surface = closestHit.getSurface();
+		res.set(surface.ambientColor());
+		Shading shading = surface.shading();
+		if (shading == Shading.AMBIENT)
+			return res;
+
+		ShadingScratch scratch = SCRATCH.get();
+		Point hittingPoint = ray.getHittingPoint(closestHit, scratch.point);
+		for (int lightIndex : lightClusters.lightsAt(hittingPoint)) {
+			Light light = lights[lightIndex];
+			if (isSampled(lightIndex) || (blocked != null ? blocked[lightIndex] : !influences(light, ray, hittingPoint)))
+				continue;
+			Ray toLight = light.rayToLight(hittingPoint, scratch.toLight);
+			Vec color = calcLitColor(shading, closestHit, toLight, ray, scratch);
+			if (color == null)
+				continue;
+			// The shadow rays are only traced for a light that adds color
+			double visibility = visibility(lightIndex, toLight, blocked != null, ray.sample());
+			if (visibility == 0)
+				continue;
+			Vec Intensity = light.intensity(hittingPoint, toLight, scratch.intensity);
+			Ops.mult(color, Intensity, color);
+			if (visibility < 1)
+				Ops.mult(visibility, color, color);
+			res = Ops.add(res, color, res);
+		}
+		if (lightTree != null)
+			res = addSampledLights(ray, closestHit, hittingPoint, shading, res, scratch);
+		return res;
+	}
+
+	/**
+	 * Computes the fraction of a light that reaches the origin of a ray to it: a
+	 * lookup in its shadow map if it has one that covers the point, the adaptive
+	 * estimate of areaVisibility for an area light, and otherwise 1 or 0 by the
+	 * shadow ray.
+	 * 
+	 * @param traced - true if the caller already traced the shadow ray and found
+	 *               it not blocked
+	 * @param sample - the path sample of the shaded ray, which places the shadow
+	 *               rays to an area light
+	 */
+	private double visibility(int lightIndex, Ray rayToLight, boolean traced, PathSample sample) {
+		double visibility = shadowMapVisibility(lightIndex, rayToLight.source());
+		if (visibility >= 0)
+			return visibility;
+		if (lights[lightIndex] instanceof AreaLight)
+			return areaVisibility(lightIndex, rayToLight, sample);
+		return traced || !isBlockedBySurface(lightIndex, rayToLight) ? 1 : 0;
+	}
+
+	/**
+	 * @return true if the caller should trace the single shadow ray to a light at
+	 *         a point, and false if the shading finds its visibility otherwise (see
+	 *         visibility).
+	 */
+	boolean tracesShadowRay(int lightIndex, Point point) {
+		return !(lights[lightIndex] instanceof AreaLight) && shadowMapVisibility(lightIndex, point) < 0;
+	}
+
+	/**
+	 * Estimates the fraction of an area light that reaches a point by shadow rays
+	 * to stratified sample points of the light. A first pass traces a jittered grid
+	 * of AREA_FIRST_PASS x AREA_FIRST_PASS rays. If they all agree, the point is
+	 * taken as fully lit or fully shadowed, which is the case away from the edges
+	 * of shadows. Otherwise the point is in a penumbra, and a finer grid of about
+	 * areaLightSamples rays is traced too.
+	 */
+	private double areaVisibility(int lightIndex, Ray rayToLight, PathSample sample) {
+		AreaLight light = (AreaLight) lights[lightIndex];
+		if (!light.illuminates(rayToLight))
+			return 0;
+		areaLightTests.increment();
+		Point point = rayToLight.source();
+		int lit = litSamples(lightIndex, light, point, AREA_FIRST_PASS, sample);
+		int first = AREA_FIRST_PASS * AREA_FIRST_PASS;
+		if (lit == 0 || lit == first)
+			return lit == 0 ? 0 : 1;
+		penumbraTests.increment();
+		int grid = penumbraGrid();
+		lit += litSamples(lightIndex, light, point, grid, sample);
+		return (double) lit / (first + grid * grid);
+	}
+
+	// The side of the grid of shadow rays the second pass of areaVisibility traces in a penumbra
+	private int penumbraGrid() {
+		return Math.max(AREA_FIRST_PASS, (int) Math.round(Math.sqrt(areaLightSamples)));
+	}
+
+	/**
+	 * Traces shadow rays from a point to a jittered grid of grid x grid sample
+	 * points of an area light. The jitter of each cell takes two numbers of the
+	 * path sample.
+	 * 
+	 * @return the number of the rays that aren't blocked.
+	 */
+	private int litSamples(int lightIndex, AreaLight light, Point point, int grid, PathSample sample) {
+		int lit = 0;
+		for (int j = 0; j < grid; ++j) {
+			for (int i = 0; i < grid; ++i) {
+				double u = (i + sample.next()) / grid;
+				double v = (j + sample.next()) / grid;
+				Point lightPoint = light.samplePoint(point, u, v);
+				if (!isOccluded(lightIndex, SCRATCH.get().toSample.set(point, lightPoint), point.dist(lightPoint)))
+					++lit;
+			}
+		}
+		areaShadowRays.add(grid * grid);
+		return lit;
+	}
+
+	/**
+	 * @return true if the light of the given index is sampled from the light tree
+	 *         by calcLocalColor, so the caller doesn't trace its shadow rays.
+	 */
+	boolean isSampled(int lightIndex) {
+		return lightTree != null && lightTree.contains(lightIndex);
+	}
+
+	/**
+	 * Adds an estimate of the color of the lights of the light tree to res. Only
+	 * lightSamples lights are shaded and have their shadow rays traced. Each is
+	 * chosen with a probability that follows its intensity at the point, and its
+	 * color is divided by that probability, so the estimate is unbiased. The
+	 * choices draw from the path sample of the ray.
+	 */
+	private Vec addSampledLights(Ray ray, Hit closestHit, Point hittingPoint, Shading shading, Vec res,
+			ShadingScratch scratch) {
+		PathSample sample = ray.sample();
+		for (int s = 0; s < lightSamples; ++s) {
+			// One random number in each of lightSamples equal ranges, so the samples spread over the tree
+			int lightIndex = lightTree.sample(hittingPoint, (s + sample.next()) / lightSamples, scratch.pdf);
+			if (lightIndex < 0)
+				continue;
+			Light light = lights[lightIndex];
+			Ray toLight = light.rayToLight(hittingPoint, scratch.toLight);
+			Vec color = calcLitColor(shading, closestHit, toLight, ray, scratch);
+			if (color == null)
+				continue;
+			double visibility = visibility(lightIndex, toLight, false, sample);
+			if (visibility == 0)
+				continue;
+			Vec Intensity = light.intensity(hittingPoint, toLight, scratch.intensity);
+			Ops.mult(visibility / (scratch.pdf[0] * lightSamples), Ops.mult(color, Intensity, color), color);
+			res = Ops.add(res, color, res);
+		}
+		return res;
+	}
+
+	/**
+	 * @return false if a light adds less than minLightIntensity to the color seen
+	 *         by the primary ray at a point of a ray, so it is culled.
+	 */
+	boolean influences(Light light, Ray ray, Point point) {
+		// The color the light adds is at most its intensity scaled by the weight of the ray. A ray
+		// lighter than minRayWeight was traced by Russian roulette and is scaled back to minRayWeight.
+		return light.influences(point, minLightIntensity / Math.max(ray.weight(), minRayWeight));
+	}
+
+	/**
+	 * @return true if a light adds color at a hit when it isn't blocked, so a
+	 *         shadow ray should be traced to it.
+	 */
+	boolean isLitBy(Ray ray, Hit closestHit, Ray toLight) {
+		Shading shading = closestHit.getSurface().shading();
+		return shading != Shading.AMBIENT && calcLitColor(shading, closestHit, toLight, ray, SCRATCH.get()) != null;
+	}
+
+	/**
+	 * Computes the diffuse and specular color a light adds at a hit, before it is
+	 * scaled by the intensity of the light. Only the terms of the shading of the
+	 * surface are computed.
+	 * 
+	 * @return the color, in one of the scratch vectors, or null if it is 0.
+	 */
+	private Vec calcLitColor(Shading shading, Hit hit, Ray toLight, Ray ray, ShadingScratch scratch) {
+		Vec color = null;
+		if (shading.hasDiffuse()) {
+			double diffuse = diffuseFactor(hit, toLight);
+			if (diffuse > 0)
+				color = Ops.mult(diffuse, hit.getSurface().Kd(), scratch.color);
+		}
+		if (shading.hasSpecular()) {
+			double specular = specularFactor(hit, toLight, ray, scratch);
+			if (specular > 0) {
+				Vec specularColor = Ops.mult(specular, hit.getSurface().Ks(), scratch.specular);
+				color = color == null ? specularColor : Ops.add(color, specularColor, color);
 			}
 		}
+		return color;
+	}
 
-		if(this.renderReflections) {
-			Vec reflectedVec = Ops.reflect(ray.direction(), closestHit.getNormalToSurface());
-			Vec IntensityVec = closestHit.getSurface().Ks().mult(closestHit.getSurface().reflectionIntensity());
-			Ray reflectedRay = new Ray(hittingPoint, reflectedVec);
-			res = res.add(calcColor(reflectedRay, recusionLevel + 1).mult(IntensityVec));
-					
+	/**
+	 * Adds the colors seen along the reflected and refracted rays to the local
+	 * color of a hit, in place.
+	 * 
+	 * @param res       - the local color, which gets the result
+	 * @param reflected - the color seen along the reflected ray, or null if
+	 *                  reflections aren't rendered
+	 * @param refracted - the color seen along the refracted ray, or null if the
+	 *                  hit doesn't refract
+	 */
+	Vec combineColors(Hit closestHit, Vec res, Vec reflected, Vec refracted) {
+		if(reflected != null) {
+			// res + reflected * (Ks * reflectionIntensity)
+			Vec ks = closestHit.getSurface().Ks();
+			double a = closestHit.getSurface().reflectionIntensity();
+			res.set(res.x + reflected.x * (a * ks.x), res.y + reflected.y * (a * ks.y),
+					res.z + reflected.z * (a * ks.z));
 		}
 		
-		if(this.renderRefarctions && closestHit.getSurface().isTransparent()) {
-			double n1 = closestHit.getSurface().n1(closestHit);
-			double n2 = closestHit.getSurface().n2(closestHit);
-			Vec refractedVec = Ops.refract(ray.direction(), closestHit.getNormalToSurface(), n1, n2);
-			Vec intensityVec = new Vec(closestHit.getSurface().refractionIntensity());
-			Ray refractedRay = new Ray(hittingPoint, refractedVec);
-			res = res.add(calcColor(refractedRay, recusionLevel + 1)).mult(intensityVec);
+		if(refracted != null) {
+			// (res + refracted) * refractionIntensity
+			double a = closestHit.getSurface().refractionIntensity();
+			res.set((res.x + refracted.x) * a, (res.y + refracted.y) * a, (res.z + refracted.z) * a);
 		}
 		
 		return res;
 	}
+
+	/**
+	 * @return the weight of the reflected ray of a hit: the weight of the ray
+	 *         times the largest channel of the factor combineColors scales the
+	 *         reflected color by.
+	 */
+	double reflectedWeight(Ray ray, Hit closestHit) {
+		Surface surface = closestHit.getSurface();
+		Vec ks = surface.Ks();
+		double weight = ray.weight() * Math.max(ks.x, Math.max(ks.y, ks.z)) * surface.reflectionIntensity();
+		return refracts(closestHit) ? weight * surface.refractionIntensity() : weight;
+	}
+
+	/**
+	 * @return the weight of the refracted ray of a hit (see reflectedWeight).
+	 */
+	double refractedWeight(Ray ray, Hit closestHit) {
+		return ray.weight() * closestHit.getSurface().refractionIntensity();
+	}
+
+	Ray reflectedRay(Ray ray, Hit closestHit) {
+		return reflectedRay(ray, closestHit, new Ray(), new PathSample());
+	}
+
+	/**
+	 * Same as reflectedRay(Ray, Hit), but sets res (see Ray.set) and sample rather
+	 * than allocating.
+	 */
+	private Ray reflectedRay(Ray ray, Hit closestHit, Ray res, PathSample sample) {
+		ShadingScratch scratch = SCRATCH.get();
+		Vec reflectedVec = Ops.reflect(ray.direction(), closestHit.getNormalToSurface(), scratch.direction);
+		return res.set(ray.getHittingPoint(closestHit, scratch.point), reflectedVec)
+				.initWeight(reflectedWeight(ray, closestHit)).initSample(ray.sample().branch(1, sample));
+	}
+
+	/**
+	 * @return true if a refracted ray should be traced from the hit.
+	 */
+	boolean refracts(Hit closestHit) {
+		return this.renderRefarctions && closestHit.getSurface().isTransparent();
+	}
+
+	Ray refractedRay(Ray ray, Hit closestHit) {
+		return refractedRay(ray, closestHit, new Ray(), new PathSample());
+	}
+
+	/**
+	 * Same as refractedRay(Ray, Hit), but sets res (see Ray.set) and sample rather
+	 * than allocating.
+	 */
+	private Ray refractedRay(Ray ray, Hit closestHit, Ray res, PathSample sample) {
+		ShadingScratch scratch = SCRATCH.get();
+		double n1 = closestHit.getSurface().n1(closestHit);
+		double n2 = closestHit.getSurface().n2(closestHit);
+		Vec refractedVec = Ops.refract(ray.direction(), closestHit.getNormalToSurface(), n1, n2, scratch.direction);
+		return res.set(ray.getHittingPoint(closestHit, scratch.point), refractedVec)
+				.initWeight(refractedWeight(ray, closestHit)).initSample(ray.sample().branch(2, sample));
+	}
 	
 	/**
+	 * Checks if any surface lies between the origin of the ray and the light source.
+	 * The search stops at the first blocker found. The occluder the calling thread
+	 * cached for the light is tested first, and the full query only runs if it
+	 * doesn't block the ray.
 	 * 
-	 * @param light
+	 * @param lightIndex - the index of the light source in lights
 	 * @param rayToLight
 	 * @return
 	 */
-	private boolean isBlockedBySurface(Light light, Ray rayToLight) {
+	private boolean isBlockedBySurface(int lightIndex, Ray rayToLight) {
+		Light light = lights[lightIndex];
+		if (!light.illuminates(rayToLight)) {
+			return true;
+		}
+		return isOccluded(lightIndex, rayToLight, light.distanceTo(rayToLight.source()));
+	}
 
-		for (Surface surface : this.surfaces) {
-			if (light.isOccludedBy(surface, rayToLight)) {
-				return true;
+	/**
+	 * @return true if a surface blocks a shadow ray to a light before tMax. The
+	 *         occluder the calling thread cached for the light is tested first, and
+	 *         the occluder the full query finds is cached.
+	 */
+	private boolean isOccluded(int lightIndex, Ray shadowRay, double tMax) {
+		if (isBlockedByCachedOccluder(lightIndex, shadowRay, tMax))
+			return true;
+		Surface occluder = geometry.occluder(shadowRay, tMax);
+		if (occluder != null)
+			occluderCache.get()[lightIndex] = occluder;
+		return occluder != null;
+	}
+
+	/**
+	 * @return true if the occluder the calling thread cached for a light blocks a
+	 *         shadow ray to it before tMax.
+	 */
+	boolean isBlockedByCachedOccluder(int lightIndex, Ray rayToLight, double tMax) {
+		Surface occluder = occluderCache.get()[lightIndex];
+		if (occluder == null)
+			return false;
+		occluderCacheTests.increment();
+		if (!occluder.intersects(rayToLight, tMax))
+			return false;
+		occluderCacheHits.increment();
+		return true;
+	}
+
+	/**
+	 * Caches an occluder for a light after a packet of shadow rays to it was
+	 * traced. The packet query doesn't tell the occluders, so the first blocked ray
+	 * is traced again to find one.
+	 */
+	void cacheOccluder(int lightIndex, Ray[] shadowRays, double[] tMax, boolean[] occluded, int m) {
+		for (int k = 0; k < m; ++k) {
+			if (occluded[k]) {
+				Surface occluder = geometry.occluder(shadowRays[k], tMax[k]);
+				if (occluder != null)
+					occluderCache.get()[lightIndex] = occluder;
+				return;
 			}
 		}
-		return false;
 	}
 
 	/**
@@ -240,47 +1261,27 @@ public class Scene {
 	 * @return
 	 */
 	private Hit closestHit(Ray ray) {
-		Hit closest = null;
-		Hit currHit;
-		for (Surface surface : this.surfaces) {
-			currHit = surface.intersect(ray);
-			if (currHit != null && (closest == null || currHit.compareTo(closest) < 0)) {
-				closest = currHit;
-			}
-		}
-		return closest;
+		return geometry.closestHit(ray);
 	}
 
 	/**
-	 * 
-	 * @param hit
-	 * @param ray
-	 * @return
+	 * @return N.L, or 0 if the light is behind the surface.
 	 */
-	private Vec calcDiffuseColor(Hit hit, Ray ray) {
-		Vec kd = hit.getSurface().Kd();
-		Vec n = hit.getNormalToSurface();
-		Vec l = ray.direction();
-		if(n.dot(l) < 0.0) {
-			return kd.mult(0.0);
-		}
-		return kd.mult(n.dot(l));
+	private double diffuseFactor(Hit hit, Ray rayToLight) {
+		double dot = hit.getNormalToSurface().dot(rayToLight.direction());
+		return dot < 0.0 ? 0.0 : dot;
 	}
 
 	/**
-	 * 
-	 * @param hit
-	 * @param rayToLight
-	 * @param origin
-	 * @return
+	 * @return (V.R)^shininess, or 0 if the reflection of the light points away
+	 *         from the viewer.
 	 */
-	private Vec calcSpecularColor(Hit hit, Ray rayToLight, Ray origin) {	
-		Vec ks = hit.getSurface().Ks();
-		Vec V = origin.direction().neg();
-		Vec R = Ops.reflect(rayToLight.direction().neg(), hit.getNormalToSurface());
+	private double specularFactor(Hit hit, Ray rayToLight, Ray origin, ShadingScratch scratch) {
+		Vec V = Ops.neg(origin.direction(), scratch.v);
+		Vec R = Ops.reflect(Ops.neg(rayToLight.direction(), scratch.r), hit.getNormalToSurface(), scratch.r);
 		double dotProduct = Ops.dot(V, R);
-		
-		return dotProduct < 0 ? new Vec() : ks.mult(Math.pow(dotProduct, hit.getSurface().shininess()));
+
+		return dotProduct < 0 ? 0 : Ops.pow(dotProduct, hit.getSurface().shininess());
 	}
 
 }
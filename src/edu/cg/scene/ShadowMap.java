@@ -0,0 +1,170 @@
+package edu.cg.scene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.accelerators.Accelerator;
+import edu.cg.scene.accelerators.RayPacket;
+
+/**
+ * The depth of the surfaces a directional light reaches first, on a grid of
+ * texels across its direction. The shadow rays of a directional light are
+ * parallel, so one ray along the light per texel finds the lit surfaces of the
+ * whole scene, and a shadow test becomes a lookup: a point is lit if it is no
+ * deeper along the light than the surface its texel saw first.
+ *
+ * The grid covers the bounds of the bounded surfaces. Points out of it (on a
+ * far part of a plain, for example) aren't covered, and their shadow rays are
+ * traced.
+ *
+ * A map is kept for the next renders of the scene while the geometry, the
+ * direction of the light and the parameters of the map stay the same (see
+ * matches), so a preview that is rendered again doesn't trace it again.
+ */
+class ShadowMap {
+	// The texels are traced in packets of rays along rows of this many texels
+	private static final int PACKET = 16;
+
+	// The parameters the map was traced with, and the version of the geometry of
+	// the scene it was traced against (see Scene.compile())
+	private final int geometryVersion;
+	private final Vec direction;
+	private final BoundingBox bounds;
+	private final double biasTexels;
+	// The direction the light travels and two unit vectors across it
+	private final Vec d, u, v;
+	private final int resolution;
+	// The coordinates of the corner of the grid along u and v and the side of a texel
+	private final double minU, minV, texel;
+	// The coordinate along d that the rays of the texels start from
+	private final double start;
+	// The depth along d of the first surface each texel sees, row by row, or infinity
+	private final float[] depths;
+	// The depth a point may be behind the depth of its texel and still be lit
+	private final double bias;
+	// Lookups average the texels in a square of 2 * filter + 1 texels around the point
+	private final int filter;
+
+	/**
+	 * Traces the rays of a shadow map.
+	 *
+	 * @param geometryVersion - the version of the geometry of the scene that
+	 *                        geometry traces
+	 * @param direction       - the direction the light travels
+	 * @param bounds          - the part of the scene the map covers
+	 * @param resolution      - the number of texels along each side of the map
+	 * @param bias            - how deep (in texels) behind the first surface a
+	 *                        point is still lit, against self shadowing
+	 * @param filter          - the radius (in texels) of the percentage closer
+	 *                        filter of lookups, 0 for a single texel
+	 */
+	ShadowMap(int geometryVersion, Vec direction, BoundingBox bounds, int resolution, double bias, int filter,
+			Accelerator geometry, ForkJoinPool pool) {
+		this.geometryVersion = geometryVersion;
+		this.direction = new Vec(direction);
+		this.bounds = bounds;
+		this.biasTexels = bias;
+		d = direction.normalize();
+		// Any vector that isn't parallel to d gives the other two axes
+		Vec a = Math.abs(d.x) < 0.5 ? new Vec(1, 0, 0) : new Vec(0, 1, 0);
+		u = d.cross(a).normalize();
+		v = d.cross(u).normalize();
+		this.resolution = resolution;
+		this.filter = filter;
+
+		double lowU = Double.POSITIVE_INFINITY, highU = Double.NEGATIVE_INFINITY;
+		double lowV = Double.POSITIVE_INFINITY, highV = Double.NEGATIVE_INFINITY;
+		double lowD = Double.POSITIVE_INFINITY;
+		for (int corner = 0; corner < 8; ++corner) {
+			Vec p = new Vec((corner & 1) == 0 ? bounds.minX : bounds.maxX, (corner & 2) == 0 ? bounds.minY : bounds.maxY,
+					(corner & 4) == 0 ? bounds.minZ : bounds.maxZ);
+			lowU = Math.min(lowU, p.dot(u));
+			highU = Math.max(highU, p.dot(u));
+			lowV = Math.min(lowV, p.dot(v));
+			highV = Math.max(highV, p.dot(v));
+			lowD = Math.min(lowD, p.dot(d));
+		}
+		texel = Math.max(Math.max(highU - lowU, highV - lowV) / resolution, Ops.epsilon);
+		minU = lowU;
+		minV = lowV;
+		// The rays start a little in front of the bounds, so they don't start inside a surface
+		start = lowD - 1;
+		this.bias = bias * texel;
+
+		depths = new float[resolution * resolution];
+		List<ForkJoinTask<?>> rows = new ArrayList<>();
+		for (int row = 0; row < resolution; ++row) {
+			int j = row;
+			rows.add(ForkJoinTask.adapt(() -> traceRow(j, geometry)));
+		}
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(rows)));
+	}
+
+	private void traceRow(int j, Accelerator geometry) {
+		Ray[] rays = new Ray[PACKET];
+		Hit[] hits = new Hit[PACKET];
+		for (int i0 = 0; i0 < resolution; i0 += PACKET) {
+			int n = Math.min(PACKET, resolution - i0);
+			for (int k = 0; k < n; ++k)
+				rays[k] = new Ray(point(i0 + k + 0.5, j + 0.5, start), d);
+			Arrays.fill(hits, null);
+			geometry.closestHits(new RayPacket(rays, n), hits);
+			for (int k = 0; k < n; ++k)
+				depths[j * resolution + i0 + k] = hits[k] == null ? Float.POSITIVE_INFINITY
+						: (float) (start + hits[k].t());
+		}
+	}
+
+	// The point at texel coordinates (i, j) and depth depth
+	private Point point(double i, double j, double depth) {
+		double a = minU + i * texel, b = minV + j * texel;
+		return new Point(a * u.x + b * v.x + depth * d.x, a * u.y + b * v.y + depth * d.y,
+				a * u.z + b * v.z + depth * d.z);
+	}
+
+	/**
+	 * @return true if the map was traced with the given parameters, so it can be
+	 *         used again.
+	 */
+	boolean matches(int geometryVersion, Vec direction, BoundingBox bounds, int resolution, double bias,
+			int filter) {
+		return this.geometryVersion == geometryVersion && this.direction.x == direction.x && this.direction.y == direction.y && this.direction.z == direction.z
+				&& this.bounds.minX == bounds.minX && this.bounds.minY == bounds.minY && this.bounds.minZ == bounds.minZ
+				&& this.bounds.maxX == bounds.maxX && this.bounds.maxY == bounds.maxY && this.bounds.maxZ == bounds.maxZ
+				&& this.resolution == resolution && this.biasTexels == bias && this.filter == filter;
+	}
+
+	/**
+	 * @return the fraction of the texels around a point that see it lit, between 0
+	 *         and 1, or -1 if the map doesn't cover the point.
+	 */
+	double visibility(Point p) {
+		double pu = p.x * u.x + p.y * u.y + p.z * u.z;
+		double pv = p.x * v.x + p.y * v.y + p.z * v.z;
+		double pd = p.x * d.x + p.y * d.y + p.z * d.z;
+		double i = (pu - minU) / texel, j = (pv - minV) / texel;
+		if (!(i >= 0 && i < resolution && j >= 0 && j < resolution))
+			return -1;
+		int ci = (int) i, cj = (int) j;
+		int lit = 0, texels = 0;
+		for (int y = Math.max(0, cj - filter); y <= Math.min(resolution - 1, cj + filter); ++y) {
+			for (int x = Math.max(0, ci - filter); x <= Math.min(resolution - 1, ci + filter); ++x) {
+				// A texel further from the point has more slope to cover
+				double texelBias = bias * (1 + Math.max(Math.abs(x - ci), Math.abs(y - cj)));
+				if (pd <= depths[y * resolution + x] + texelBias)
+					++lit;
+				++texels;
+			}
+		}
+		return (double) lit / texels;
+	}
+}
@@ -0,0 +1,122 @@
+package edu.cg.scene;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders a list of tiles on a ForkJoinPool. The list is split in halves
+ * recursively: a worker keeps working on the first half and leaves the second
+ * half in its queue, where an idle worker can steal it. So the number of tasks
+ * is linear in the number of tiles and the load balances itself.
+ *
+ * The halves have about the same estimated cost rather than the same number of
+ * tiles, and a worker renders its half in list order, so when the list is
+ * sorted by order() the expensive tiles start first and the render doesn't end
+ * waiting for one of them.
+ *
+ * Each tile is rendered into its own buffer, which is copied into the image as
+ * soon as the tile is done.
+ */
+class TileScheduler extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * A rectangle of pixels.
+	 */
+	static class Tile {
+		final int x, y, width, height;
+		// The position of the tile along a Morton curve over the grid of tiles
+		final long morton;
+		// The estimated cost of the tile, in any unit shared by all the tiles
+		double cost = 1;
+
+		Tile(int x, int y, int width, int height, long morton) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.morton = morton;
+		}
+	}
+
+	interface TileRenderer {
+		/**
+		 * @return the RGB colors of the tile, row by row.
+		 */
+		int[] render(Tile tile);
+	}
+
+	private final List<Tile> tiles;
+	private final int from, to;
+	private final TileRenderer renderer;
+	private final BufferedImage img;
+
+	/**
+	 * Renders tiles.get(from), ..., tiles.get(to - 1) into img.
+	 */
+	TileScheduler(List<Tile> tiles, int from, int to, TileRenderer renderer, BufferedImage img) {
+		this.tiles = tiles;
+		this.from = from;
+		this.to = to;
+		this.renderer = renderer;
+		this.img = img;
+	}
+
+	/**
+	 * Covers an image with tiles of tileSize x tileSize pixels (smaller along the
+	 * right and bottom edges), row by row.
+	 */
+	static List<Tile> split(int width, int height, int tileSize) {
+		List<Tile> tiles = new ArrayList<>();
+		for (int y = 0; y < height; y += tileSize)
+			for (int x = 0; x < width; x += tileSize)
+				tiles.add(new Tile(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y),
+						interleave(x / tileSize) << 1 | interleave(y / tileSize)));
+		return tiles;
+	}
+
+	/**
+	 * Sorts the tiles from the most to the least expensive. Costs are compared by
+	 * their power of two only, and tiles of about the same cost are kept in Morton
+	 * order, so consecutive tiles are mostly neighbors and share the parts of the
+	 * scene they hit.
+	 */
+	static void order(List<Tile> tiles) {
+		tiles.sort(Comparator.comparingInt((Tile tile) -> -Math.getExponent(tile.cost))
+				.thenComparingLong(tile -> tile.morton));
+	}
+
+	// Spreads the bits of a value so that there is a zero bit between each two
+	private static long interleave(int value) {
+		long res = 0;
+		for (int bit = 0; bit < 31; ++bit)
+			res |= (long) ((value >> bit) & 1) << (2 * bit);
+		return res;
+	}
+
+	@Override
+	protected void compute() {
+		if (from >= to)
+			return;
+		if (to - from == 1) {
+			Tile tile = tiles.get(from);
+			int[] rgb = renderer.render(tile);
+			synchronized (img) {
+				img.setRGB(tile.x, tile.y, tile.width, tile.height, rgb, 0, tile.width);
+			}
+			return;
+		}
+		double half = 0;
+		for (int i = from; i < to; ++i)
+			half += tiles.get(i).cost;
+		half /= 2;
+		int mid = from + 1;
+		double cost = tiles.get(from).cost;
+		while (mid < to - 1 && cost + tiles.get(mid).cost <= half)
+			cost += tiles.get(mid++).cost;
+		invokeAll(new TileScheduler(tiles, from, mid, renderer, img), new TileScheduler(tiles, mid, to, renderer, img));
+	}
+}
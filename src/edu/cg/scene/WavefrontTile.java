@@ -0,0 +1,309 @@
+package edu.cg.scene;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.accelerators.Accelerator;
+import edu.cg.scene.accelerators.RayPacket;
+import edu.cg.scene.lightSources.Light;
+
+/**
+ * Traces a batch of primary rays (e.g. those of a tile of pixels) breadth
+ * first. Instead of following the reflections and refractions of one ray to
+ * the maximal recursion level before moving on to the next ray, all the rays of
+ * a bounce are traced together: the closest
+ * hits of the whole queue, then the shadow rays of the hits to each light, and
+ * then the shading, which queues the rays of the next bounce.
+ *
+ * The rays form a tree per primary ray. Its nodes are kept in columns, and a node
+ * holds its local color until all the bounces are traced. The colors are then
+ * combined from the leaves up, with the arithmetic of the recursive renderer,
+ * so both produce the same image.
+ */
+class WavefrontTile implements Callable<Vec[]> {
+	// The number of rays of a queue that are handed to the accelerator together
+	private static final int CHUNK = 64;
+	// The number of bits per axis of the origin key used to sort secondary rays
+	private static final int ORIGIN_BITS = 9;
+
+	private final Scene scene;
+	private final Accelerator geometry;
+	private final Light[] lights;
+	private final Vec backgroundColor;
+	private final int maxRecursionLevel;
+	private final Ray[] primaryRays;
+	private final int numPrimaryRays;
+
+	// The child index of a ray that was skipped for its weight, and contributes black
+	private static final int SKIPPED = -2;
+
+	// The nodes of the ray trees, in creation order. Children are created after
+	// their parents. A child index of -1 means the ray wasn't spawned. A node's
+	// color is scaled by its factor (see Scene.traceFactor) when it is combined
+	// into its parent's.
+	private Ray[] rays;
+	private Hit[] hits;
+	private Vec[] colors;
+	private double[] factors;
+	private int[] reflected, refracted;
+	private int numNodes = 0;
+
+	/**
+	 * Traces primaryRays[0], ..., primaryRays[numPrimaryRays - 1].
+	 */
+	WavefrontTile(Scene scene, Accelerator geometry, Light[] lights, Vec backgroundColor, int maxRecursionLevel,
+			Ray[] primaryRays, int numPrimaryRays) {
+		this.scene = scene;
+		this.geometry = geometry;
+		this.lights = lights;
+		this.backgroundColor = backgroundColor;
+		this.maxRecursionLevel = maxRecursionLevel;
+		this.primaryRays = primaryRays;
+		this.numPrimaryRays = numPrimaryRays;
+	}
+
+	/**
+	 * @return the colors seen along the primary rays.
+	 */
+	@Override
+	public Vec[] call() {
+		int n = numPrimaryRays;
+		allocate(2 * n);
+		int[] queue = new int[n];
+		for (int i = 0; i < n; ++i)
+			queue[i] = addNode(primaryRays[i], 1);
+
+		int size = n;
+		for (int level = 0; size > 0; ++level) {
+			if (level >= maxRecursionLevel) {
+				for (int k = 0; k < size; ++k)
+					colors[queue[k]] = new Vec();
+				break;
+			}
+			// The primary rays are coherent in the order they are given
+			if (level > 0)
+				sort(queue, size);
+			traceClosestHits(queue, size);
+			size = removeMisses(queue, size);
+			boolean[][] blocked = traceShadows(queue, size);
+			queue = shade(queue, size, blocked);
+			size = queue.length;
+		}
+
+		for (int node = numNodes - 1; node >= 0; --node) {
+			if (hits[node] == null)
+				continue;
+			Vec reflectedColor = childColor(reflected[node]);
+			Vec refractedColor = childColor(refracted[node]);
+			colors[node] = scene.combineColors(hits[node], colors[node], reflectedColor, refractedColor);
+		}
+
+		return Arrays.copyOf(colors, n);
+	}
+
+	private Vec childColor(int child) {
+		if (child == SKIPPED)
+			return new Vec();
+		return child < 0 ? null : Scene.scale(colors[child], factors[child]);
+	}
+
+	private void allocate(int capacity) {
+		rays = new Ray[capacity];
+		hits = new Hit[capacity];
+		colors = new Vec[capacity];
+		factors = new double[capacity];
+		reflected = new int[capacity];
+		refracted = new int[capacity];
+	}
+
+	private int addNode(Ray ray, double factor) {
+		if (numNodes == rays.length) {
+			int capacity = 2 * numNodes;
+			rays = Arrays.copyOf(rays, capacity);
+			hits = Arrays.copyOf(hits, capacity);
+			colors = Arrays.copyOf(colors, capacity);
+			factors = Arrays.copyOf(factors, capacity);
+			reflected = Arrays.copyOf(reflected, capacity);
+			refracted = Arrays.copyOf(refracted, capacity);
+		}
+		rays[numNodes] = ray;
+		factors[numNodes] = factor;
+		reflected[numNodes] = -1;
+		refracted[numNodes] = -1;
+		return numNodes++;
+	}
+
+	/**
+	 * Sorts the queue by the octant of the ray directions and then by the Morton
+	 * code of the ray sources, so rays that are traced together are likely to visit
+	 * the same nodes of the accelerator and to form coherent packets.
+	 */
+	private void sort(int[] queue, int size) {
+		double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+		for (int k = 0; k < size; ++k) {
+			Point p = rays[queue[k]].source();
+			minX = Math.min(minX, p.x);
+			minY = Math.min(minY, p.y);
+			minZ = Math.min(minZ, p.z);
+			maxX = Math.max(maxX, p.x);
+			maxY = Math.max(maxY, p.y);
+			maxZ = Math.max(maxZ, p.z);
+		}
+
+		// The key goes to the high half and the position in the queue to the low half
+		long[] keys = new long[size];
+		for (int k = 0; k < size; ++k) {
+			Ray ray = rays[queue[k]];
+			Vec d = ray.direction();
+			Point p = ray.source();
+			int octant = (d.x < 0 ? 4 : 0) | (d.y < 0 ? 2 : 0) | (d.z < 0 ? 1 : 0);
+			long morton = interleave(quantize(p.x, minX, maxX)) << 2 | interleave(quantize(p.y, minY, maxY)) << 1
+					| interleave(quantize(p.z, minZ, maxZ));
+			keys[k] = ((long) octant << (3 * ORIGIN_BITS) | morton) << 32 | k;
+		}
+		Arrays.sort(keys);
+
+		int[] sorted = new int[size];
+		for (int k = 0; k < size; ++k)
+			sorted[k] = queue[(int) keys[k]];
+		System.arraycopy(sorted, 0, queue, 0, size);
+	}
+
+	private static int quantize(double value, double min, double max) {
+		if (max <= min)
+			return 0;
+		int cells = 1 << ORIGIN_BITS;
+		return Math.min(cells - 1, (int) ((value - min) / (max - min) * cells));
+	}
+
+	// Spreads the bits of a value so that there are two zero bits between each two
+	private static long interleave(int value) {
+		long res = 0;
+		for (int bit = 0; bit < ORIGIN_BITS; ++bit)
+			res |= (long) ((value >> bit) & 1) << (3 * bit);
+		return res;
+	}
+
+	private void traceClosestHits(int[] queue, int size) {
+		Ray[] chunk = new Ray[CHUNK];
+		Hit[] chunkHits = new Hit[CHUNK];
+		for (int from = 0; from < size; from += CHUNK) {
+			int m = Math.min(CHUNK, size - from);
+			for (int k = 0; k < m; ++k)
+				chunk[k] = rays[queue[from + k]];
+			geometry.closestHits(new RayPacket(chunk, m), chunkHits);
+			for (int k = 0; k < m; ++k)
+				hits[queue[from + k]] = chunkHits[k];
+		}
+	}
+
+	/**
+	 * Gives the rays that missed the background color and removes them from the
+	 * queue.
+	 *
+	 * @return the number of rays left in the queue.
+	 */
+	private int removeMisses(int[] queue, int size) {
+		int left = 0;
+		for (int k = 0; k < size; ++k) {
+			int node = queue[k];
+			if (hits[node] == null)
+				colors[node] = backgroundColor;
+			else
+				queue[left++] = node;
+		}
+		return left;
+	}
+
+	/**
+	 * @return for each ray of the queue, whether each light is blocked at its hit.
+	 */
+	private boolean[][] traceShadows(int[] queue, int size) {
+		boolean[][] blocked = new boolean[size][lights.length];
+		Ray[] chunk = new Ray[CHUNK];
+		int[] owners = new int[CHUNK];
+		double[] tMax = new double[CHUNK];
+		boolean[] occluded = new boolean[CHUNK];
+		for (int lightIndex = 0; lightIndex < lights.length; ++lightIndex) {
+			Light light = lights[lightIndex];
+			int m = 0;
+			for (int k = 0; k < size; ++k) {
+				int node = queue[k];
+				if (scene.isSampled(lightIndex)) {
+					blocked[k][lightIndex] = true;
+					continue;
+				}
+				Ray toLight = light.rayToLight(rays[node].getHittingPoint(hits[node]));
+				if (!light.illuminates(toLight) || !scene.influences(light, rays[node], toLight.source())
+						|| !scene.isLitBy(rays[node], hits[node], toLight)) {
+					blocked[k][lightIndex] = true;
+					continue;
+				}
+				// The shading looks the shadow up in the map or samples the area of the light
+				if (!scene.tracesShadowRay(lightIndex, toLight.source()))
+					continue;
+				tMax[m] = light.distanceTo(toLight.source());
+				if (scene.isBlockedByCachedOccluder(lightIndex, toLight, tMax[m])) {
+					blocked[k][lightIndex] = true;
+					continue;
+				}
+				chunk[m] = toLight;
+				owners[m++] = k;
+				if (m == CHUNK) {
+					traceOcclusion(chunk, m, tMax, occluded, blocked, owners, lightIndex);
+					m = 0;
+				}
+			}
+			if (m > 0)
+				traceOcclusion(chunk, m, tMax, occluded, blocked, owners, lightIndex);
+		}
+		return blocked;
+	}
+
+	private void traceOcclusion(Ray[] chunk, int m, double[] tMax, boolean[] occluded, boolean[][] blocked,
+			int[] owners, int lightIndex) {
+		Arrays.fill(occluded, 0, m, false);
+		geometry.occluded(new RayPacket(chunk, m), tMax, occluded);
+		scene.cacheOccluder(lightIndex, chunk, tMax, occluded, m);
+		for (int k = 0; k < m; ++k)
+			blocked[owners[k]][lightIndex] = occluded[k];
+	}
+
+	/**
+	 * Computes the local colors of the hits and spawns their reflected and
+	 * refracted rays, unless they are skipped for their weight.
+	 *
+	 * @return the queue of the next bounce.
+	 */
+	private int[] shade(int[] queue, int size, boolean[][] blocked) {
+		int[] next = new int[2 * size];
+		int nextSize = 0;
+		for (int k = 0; k < size; ++k) {
+			int node = queue[k];
+			Ray ray = rays[node];
+			Hit hit = hits[node];
+			colors[node] = scene.calcLocalColor(ray, hit, blocked[k]);
+			// addNode can grow the columns, so it is called before they are indexed
+			if (scene.getRenderReflections()) {
+				double factor = scene.traceFactor(ray, scene.reflectedWeight(ray, hit));
+				int child = factor == 0 ? SKIPPED : addNode(scene.reflectedRay(ray, hit), factor);
+				reflected[node] = child;
+				if (child >= 0)
+					next[nextSize++] = child;
+			}
+			if (scene.refracts(hit)) {
+				double factor = scene.traceFactor(ray, scene.refractedWeight(ray, hit));
+				int child = factor == 0 ? SKIPPED : addNode(scene.refractedRay(ray, hit), factor);
+				refracted[node] = child;
+				if (child >= 0)
+					next[nextSize++] = child;
+			}
+		}
+		return Arrays.copyOf(next, nextSize);
+	}
+}
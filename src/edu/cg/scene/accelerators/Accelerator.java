@@ -0,0 +1,69 @@
+package edu.cg.scene.accelerators;
+
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ray;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * A spatial structure that answers ray queries over a fixed set of surfaces. An
+ * accelerator is built once per render and is then queried concurrently by all
+ * the rendering threads, so implementations must be immutable after
+ * construction.
+ */
+public interface Accelerator {
+	/**
+	 * Finds the closest intersection of the ray with the surfaces.
+	 * 
+	 * @param ray - the specified ray
+	 * @return the closest hit (with its surface set), or null if the ray misses
+	 *         all the surfaces.
+	 */
+	public Hit closestHit(Ray ray);
+
+	/**
+	 * Checks whether any surface is hit by the ray at a distance t where epsilon <
+	 * t < tMax.
+	 * 
+	 * @param ray  - the shadow ray
+	 * @param tMax - the distance to the light source
+	 * @return true if some surface blocks the ray before tMax.
+	 */
+	public boolean isOccluded(Ray ray, double tMax);
+
+	/**
+	 * Finds a surface that blocks the ray, like isOccluded, so that the caller can
+	 * test it first for the next shadow rays to the same light. It is the first
+	 * blocker the traversal meets, not necessarily the closest one.
+	 * 
+	 * @param ray  - the shadow ray
+	 * @param tMax - the distance to the light source
+	 * @return a surface that blocks the ray before tMax, or null if none does.
+	 */
+	public Surface occluder(Ray ray, double tMax);
+
+	/**
+	 * Finds the closest hits of a packet of rays. The default traces the rays one
+	 * by one; accelerators can share the traversal between the rays.
+	 * 
+	 * @param packet - the rays
+	 * @param hits   - receives the closest hit of ray i (or null) at index i
+	 */
+	public default void closestHits(RayPacket packet, Hit[] hits) {
+		for (int i = 0; i < packet.size(); ++i)
+			hits[i] = closestHit(packet.ray(i));
+	}
+
+	/**
+	 * The packet version of isOccluded. Rays that are already marked as occluded
+	 * are skipped, so the parts of a composite can be queried one after the other.
+	 * 
+	 * @param packet   - the shadow rays
+	 * @param tMax     - the distance of ray i to its light source at index i
+	 * @param occluded - set to true at index i if ray i is blocked
+	 */
+	public default void occluded(RayPacket packet, double[] tMax, boolean[] occluded) {
+		for (int i = 0; i < packet.size(); ++i)
+			if (!occluded[i])
+				occluded[i] = isOccluded(packet.ray(i), tMax[i]);
+	}
+}
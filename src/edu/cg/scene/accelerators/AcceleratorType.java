@@ -0,0 +1,41 @@
+package edu.cg.scene.accelerators;
+
+import java.util.List;
+
+import edu.cg.scene.objects.Surface;
+
+/**
+ * The acceleration structures a scene can be rendered with.
+ */
+public enum AcceleratorType {
+	LINEAR("Linear"), BVH("BVH"), FLAT_BVH("Flat BVH"), GRID("Grid"), TWO_LEVEL_GRID("2-level grid");
+
+	private final String displayName;
+
+	private AcceleratorType(String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * Builds an accelerator of this type over the given bounded surfaces.
+	 */
+	public Accelerator build(List<Surface> surfaces) {
+		switch (this) {
+		case LINEAR:
+			return new LinearAccelerator(surfaces);
+		case FLAT_BVH:
+			return new FlatBVH(surfaces);
+		case GRID:
+			return new UniformGrid(surfaces, false);
+		case TWO_LEVEL_GRID:
+			return new UniformGrid(surfaces, true);
+		default:
+			return new BVH(surfaces);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
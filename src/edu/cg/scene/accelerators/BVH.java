@@ -0,0 +1,179 @@
+package edu.cg.scene.accelerators;
+
+import java.util.List;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.accelerators.SAHBuilder.Node;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * A bounding volume hierarchy over bounded surfaces. The tree is built top-down
+ * using a binned surface area heuristic (SAH) and is immutable once built, so it
+ * can be shared by all rendering threads. The nodes are plain Java objects; see
+ * FlatBVH for a compact layout of the same tree.
+ */
+public class BVH implements Accelerator {
+	private final Surface[] surfaces;
+	// The index of each surface in the list given to the constructor, used to
+	// break ties between hits at the same distance the way a linear scan would.
+	private final int[] order;
+	private final Node root;
+	private final int numNodes;
+	private final int depth;
+	// The traversal stack of each thread, so a query doesn't allocate one
+	private final ThreadLocal<Node[]> stacks;
+
+	/**
+	 * Builds a hierarchy over the given surfaces.
+	 *
+	 * @param surfaces - bounded surfaces (Surface.bounds() must not be null)
+	 */
+	public BVH(List<Surface> surfaces) {
+		SAHBuilder builder = new SAHBuilder(surfaces);
+		this.surfaces = builder.surfaces;
+		this.order = builder.order;
+		this.root = builder.root;
+		this.numNodes = builder.numNodes;
+		this.depth = builder.depth;
+		this.stacks = ThreadLocal.withInitial(() -> new Node[2 * depth + 1]);
+	}
+
+	public int numNodes() {
+		return numNodes;
+	}
+
+	public int depth() {
+		return depth;
+	}
+
+	/**
+	 * @return the number of heap bytes taken by the nodes and their bounds, as
+	 *         measured on the running JVM, or -1 if the JVM can't tell.
+	 */
+	public long nodeBytes() {
+		return SAHBuilder.NODE_BYTES < 0 ? -1 : SAHBuilder.NODE_BYTES * numNodes;
+	}
+
+	public int numSurfaces() {
+		return surfaces.length;
+	}
+
+	public BoundingBox bounds() {
+		return root == null ? BoundingBox.empty() : root.bounds;
+	}
+
+	/**
+	 * Finds the closest intersection of the ray with the surfaces of the hierarchy.
+	 *
+	 * @param ray - the ray
+	 * @return the closest hit, or null if the ray misses all the surfaces.
+	 */
+	@Override
+	public Hit closestHit(Ray ray) {
+		if (root == null)
+			return null;
+
+		// Only the distance of a candidate is computed, the Hit is built for the winner
+		int closest = -1;
+		int closestOrder = -1;
+		double tClosest = ray.tMax();
+		Node[] stack = stacks.get();
+		int top = 0;
+		if (root.bounds.intersect(ray, tClosest) == Double.POSITIVE_INFINITY)
+			return null;
+		stack[top++] = root;
+
+		while (top > 0) {
+			Node node = stack[--top];
+			if (node.isLeaf()) {
+				for (int i = node.start; i < node.start + node.count; ++i) {
+					double t = surfaces[i].distance(ray, tClosest);
+					if (t == Double.POSITIVE_INFINITY)
+						continue;
+					// Here t <= tClosest, and at the same distance the surface that appears
+					// first in the scene wins
+					if (closest < 0 || t < tClosest || order[i] < closestOrder) {
+						closest = i;
+						closestOrder = order[i];
+						tClosest = t;
+					}
+				}
+				continue;
+			}
+			double tLeft = node.left.bounds.intersect(ray, tClosest);
+			double tRight = node.right.bounds.intersect(ray, tClosest);
+			// Pushes the far child first so the near child is visited first
+			if (tLeft <= tRight) {
+				if (tRight != Double.POSITIVE_INFINITY)
+					stack[top++] = node.right;
+				if (tLeft != Double.POSITIVE_INFINITY)
+					stack[top++] = node.left;
+			} else {
+				if (tLeft != Double.POSITIVE_INFINITY)
+					stack[top++] = node.left;
+				stack[top++] = node.right;
+			}
+		}
+		if (closest < 0)
+			return null;
+		ray.shrink(tClosest);
+		return surfaces[closest].hitAt(ray, tClosest);
+	}
+
+	/**
+	 * Checks whether any surface of the hierarchy is hit by the ray at a distance
+	 * t where epsilon < t < tMax. The traversal stops at the first such surface.
+	 *
+	 * @param ray  - the shadow ray
+	 * @param tMax - the distance to the light source
+	 * @return true if some surface blocks the ray before tMax.
+	 */
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		return occluder(ray, tMax) != null;
+	}
+
+	@Override
+	public Surface occluder(Ray ray, double tMax) {
+		if (root == null)
+			return null;
+
+		Node[] stack = stacks.get();
+		int top = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			Node node = stack[--top];
+			if (node.bounds.intersect(ray, tMax) == Double.POSITIVE_INFINITY)
+				continue;
+			if (node.isLeaf()) {
+				for (int i = node.start; i < node.start + node.count; ++i)
+					if (surfaces[i].intersects(ray, tMax))
+						return surfaces[i];
+				continue;
+			}
+			stack[top++] = node.right;
+			stack[top++] = node.left;
+		}
+		return null;
+	}
+
+	/**
+	 * Formats bytes / surfaces for the build log, or "unknown" if the bytes
+	 * couldn't be measured.
+	 */
+	static String bytesPerSurface(long bytes, int surfaces) {
+		if (bytes < 0)
+			return "unknown";
+		return String.format("%.1f", surfaces == 0 ? 0.0 : (double) bytes / surfaces);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BVH over %d surfaces (%d nodes, depth %d, %s node bytes per surface)", surfaces.length,
+				numNodes, depth, bytesPerSurface(nodeBytes(), surfaces.length));
+	}
+}
@@ -0,0 +1,93 @@
+package edu.cg.scene.accelerators;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ray;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * Combines accelerators over disjoint sets of surfaces (e.g. voxels, other
+ * bounded surfaces and unbounded surfaces). Between hits at the same distance,
+ * the surface that appears first in the scene wins, like in a linear scan.
+ */
+public class CompositeAccelerator implements Accelerator {
+	private final Accelerator[] parts;
+	// The index of each surface in the scene
+	private final Map<Surface, Integer> order = new IdentityHashMap<>();
+
+	/**
+	 * @param surfaces - the surfaces of all the parts, in the order of the scene
+	 */
+	public CompositeAccelerator(List<Surface> surfaces, Accelerator... parts) {
+		this.parts = parts;
+		for (Surface surface : surfaces)
+			order.put(surface, order.size());
+	}
+
+	// True if hit is closer than closest, or as close but on a surface that appears first in the scene
+	private boolean isCloser(Hit hit, Hit closest) {
+		int cmp = hit.compareTo(closest);
+		return cmp < 0 || (cmp == 0 && order.get(hit.getSurface()) < order.get(closest.getSurface()));
+	}
+
+	@Override
+	public Hit closestHit(Ray ray) {
+		Hit closest = null;
+		for (Accelerator part : parts) {
+			Hit hit = part.closestHit(ray);
+			if (hit != null && (closest == null || isCloser(hit, closest)))
+				closest = hit;
+		}
+		return closest;
+	}
+
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		for (Accelerator part : parts)
+			if (part.isOccluded(ray, tMax))
+				return true;
+		return false;
+	}
+
+	@Override
+	public Surface occluder(Ray ray, double tMax) {
+		for (Accelerator part : parts) {
+			Surface occluder = part.occluder(ray, tMax);
+			if (occluder != null)
+				return occluder;
+		}
+		return null;
+	}
+
+	@Override
+	public void closestHits(RayPacket packet, Hit[] hits) {
+		Hit[] partHits = new Hit[packet.size()];
+		for (int k = 0; k < parts.length; ++k) {
+			parts[k].closestHits(packet, k == 0 ? hits : partHits);
+			if (k == 0)
+				continue;
+			for (int i = 0; i < packet.size(); ++i) {
+				Hit hit = partHits[i];
+				if (hit != null && (hits[i] == null || isCloser(hit, hits[i])))
+					hits[i] = hit;
+			}
+		}
+	}
+
+	@Override
+	public void occluded(RayPacket packet, double[] tMax, boolean[] occluded) {
+		for (Accelerator part : parts)
+			part.occluded(packet, tMax, occluded);
+	}
+
+	@Override
+	public String toString() {
+		String res = "";
+		for (Accelerator part : parts)
+			res += (res.isEmpty() ? "" : " + ") + part;
+		return res;
+	}
+}
@@ -0,0 +1,513 @@
+package edu.cg.scene.accelerators;
+
+import java.util.List;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.scene.accelerators.GeometryStore.Candidate;
+import edu.cg.scene.accelerators.SAHBuilder.Node;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * The same SAH hierarchy as BVH, flattened into primitive arrays in depth-first
+ * order. A node takes 20 bytes: two ints of topology and six 16 bit bounds,
+ * quantized relative to the bounds of the whole tree. There are no per-node
+ * objects, so the tree stays compact and cache friendly for millions of
+ * surfaces.
+ *
+ * The leaves refer to ranges of a GeometryStore, where the spheres and boxes of
+ * each leaf are packed next to each other, so the leaf loops don't chase
+ * pointers either.
+ */
+public class FlatBVH implements Accelerator {
+	private static final int QUANTIZATION_STEPS = 0xFFFF;
+	// Widens the far distance of the slab test, see BoundingBox
+	private static final double ROBUST_FACTOR = 1 + 1e-9;
+
+	private final GeometryStore store;
+	private final int numSurfaces;
+	// Two ints per node. An interior node holds the index of its right child and 0
+	// (its left child follows it). A leaf holds its index in leaves and the number
+	// of its surfaces.
+	private final int[] nodes;
+	// Six ints per leaf: the ranges of its spheres, boxes and other surfaces in the
+	// store ([start, end) each)
+	private final int[] leaves;
+	// Six unsigned 16 bit values per node: the quantized minimum and maximum of its
+	// bounds along x, y and z. They are rounded outwards, so a quantized box always
+	// contains the exact one.
+	private final short[] quantizedBounds;
+	private final double originX, originY, originZ;
+	private final double scaleX, scaleY, scaleZ;
+	private final int numNodes;
+	private final int depth;
+	private int nextNode = 0;
+	private int nextLeaf = 0;
+
+	// The traversal stack and closest hit of a query, reused by the queries of a thread
+	private class Traversal {
+		final int[] stack = new int[2 * depth + 1];
+		final Candidate closest = new Candidate();
+	}
+
+	private final ThreadLocal<Traversal> traversals = ThreadLocal.withInitial(Traversal::new);
+
+	/**
+	 * Builds a hierarchy over the given surfaces.
+	 *
+	 * @param surfaces - bounded surfaces (Surface.bounds() must not be null)
+	 */
+	public FlatBVH(List<Surface> surfaces) {
+		SAHBuilder builder = new SAHBuilder(surfaces);
+		this.numSurfaces = surfaces.size();
+		this.store = new GeometryStore(surfaces.toArray(new Surface[numSurfaces]));
+		this.numNodes = builder.numNodes;
+		this.depth = builder.depth;
+		nodes = new int[2 * numNodes];
+		// Every interior node has two children, so a tree of n nodes has (n + 1) / 2 leaves
+		leaves = new int[6 * ((numNodes + 1) / 2)];
+		quantizedBounds = new short[6 * numNodes];
+
+		BoundingBox rootBounds = builder.root == null ? new BoundingBox(new Point(), new Point())
+				: builder.root.bounds;
+		originX = rootBounds.minX;
+		originY = rootBounds.minY;
+		originZ = rootBounds.minZ;
+		scaleX = scaleOf(rootBounds.extent(0));
+		scaleY = scaleOf(rootBounds.extent(1));
+		scaleZ = scaleOf(rootBounds.extent(2));
+		if (builder.root != null)
+			flatten(builder.root, builder.order);
+	}
+
+	private static double scaleOf(double extent) {
+		return (extent > 0 ? extent : Ops.epsilon) / QUANTIZATION_STEPS;
+	}
+
+	private int flatten(Node node, int[] order) {
+		int index = nextNode++;
+		BoundingBox b = node.bounds;
+		quantizedBounds[6 * index] = quantizeDown(b.minX, originX, scaleX);
+		quantizedBounds[6 * index + 1] = quantizeDown(b.minY, originY, scaleY);
+		quantizedBounds[6 * index + 2] = quantizeDown(b.minZ, originZ, scaleZ);
+		quantizedBounds[6 * index + 3] = quantizeUp(b.maxX, originX, scaleX);
+		quantizedBounds[6 * index + 4] = quantizeUp(b.maxY, originY, scaleY);
+		quantizedBounds[6 * index + 5] = quantizeUp(b.maxZ, originZ, scaleZ);
+		if (node.isLeaf()) {
+			int leaf = nextLeaf++;
+			leaves[6 * leaf] = store.numSpheres();
+			leaves[6 * leaf + 2] = store.numBoxes();
+			leaves[6 * leaf + 4] = store.numOthers();
+			for (int i = node.start; i < node.start + node.count; ++i)
+				store.add(order[i]);
+			leaves[6 * leaf + 1] = store.numSpheres();
+			leaves[6 * leaf + 3] = store.numBoxes();
+			leaves[6 * leaf + 5] = store.numOthers();
+			nodes[2 * index] = leaf;
+			nodes[2 * index + 1] = node.count;
+		} else {
+			flatten(node.left, order);
+			nodes[2 * index] = flatten(node.right, order);
+			nodes[2 * index + 1] = 0;
+		}
+		return index;
+	}
+
+	// The extra step on each side absorbs the rounding errors of the division
+	private static short quantizeDown(double v, double origin, double scale) {
+		double q = Math.floor((v - origin) / scale) - 1;
+		return (short) Math.max(0, Math.min(QUANTIZATION_STEPS, q));
+	}
+
+	private static short quantizeUp(double v, double origin, double scale) {
+		double q = Math.ceil((v - origin) / scale) + 1;
+		return (short) Math.max(0, Math.min(QUANTIZATION_STEPS, q));
+	}
+
+	public int numNodes() {
+		return numNodes;
+	}
+
+	/**
+	 * @return the number of bytes taken by the node arrays.
+	 */
+	public long nodeBytes() {
+		return 4L * (nodes.length + leaves.length) + 2L * quantizedBounds.length;
+	}
+
+	/**
+	 * @return the number of heap bytes the same tree takes as the nodes of BVH,
+	 *         see BVH.nodeBytes().
+	 */
+	public long objectNodeBytes() {
+		return SAHBuilder.NODE_BYTES < 0 ? -1 : SAHBuilder.NODE_BYTES * numNodes;
+	}
+
+	/**
+	 * Slab test against the dequantized bounds of a node. Along each axis, a
+	 * quantized value q is at distance a + q * b along the ray, where a and b are
+	 * computed once per ray.
+	 */
+	private double intersectNode(int node, double ax, double ay, double az, double bx, double by, double bz,
+			double tMax) {
+		int base = 6 * node;
+		double tNear = Double.NEGATIVE_INFINITY;
+		double tFar = tMax;
+
+		double t1 = ax + (quantizedBounds[base] & 0xFFFF) * bx;
+		double t2 = ax + (quantizedBounds[base + 3] & 0xFFFF) * bx;
+		if (t1 > t2) {
+			double temp = t1;
+			t1 = t2;
+			t2 = temp;
+		}
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+
+		t1 = ay + (quantizedBounds[base + 1] & 0xFFFF) * by;
+		t2 = ay + (quantizedBounds[base + 4] & 0xFFFF) * by;
+		if (t1 > t2) {
+			double temp = t1;
+			t1 = t2;
+			t2 = temp;
+		}
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+
+		t1 = az + (quantizedBounds[base + 2] & 0xFFFF) * bz;
+		t2 = az + (quantizedBounds[base + 5] & 0xFFFF) * bz;
+		if (t1 > t2) {
+			double temp = t1;
+			t1 = t2;
+			t2 = temp;
+		}
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+
+		tFar *= ROBUST_FACTOR;
+		if (tNear > tFar || tFar < Ops.epsilon)
+			return Double.POSITIVE_INFINITY;
+		return tNear;
+	}
+
+	@Override
+	public Hit closestHit(Ray ray) {
+		if (numNodes == 0)
+			return null;
+		Point o = ray.source();
+		double invDx = ray.invDx(), invDy = ray.invDy(), invDz = ray.invDz();
+		double ax = (originX - o.x) * invDx, ay = (originY - o.y) * invDy, az = (originZ - o.z) * invDz;
+		double bx = scaleX * invDx, by = scaleY * invDy, bz = scaleZ * invDz;
+
+		Traversal traversal = traversals.get();
+		Candidate closest = traversal.closest.reset(ray.tMax());
+		if (intersectNode(0, ax, ay, az, bx, by, bz, closest.t) == Double.POSITIVE_INFINITY)
+			return null;
+		int[] stack = traversal.stack;
+		int top = 0;
+		stack[top++] = 0;
+
+		while (top > 0) {
+			int node = stack[--top];
+			if (nodes[2 * node + 1] > 0) {
+				int leaf = 6 * nodes[2 * node];
+				store.closestSphere(ray, leaves[leaf], leaves[leaf + 1], closest);
+				store.closestBox(ray, leaves[leaf + 2], leaves[leaf + 3], closest);
+				store.closestOther(ray, leaves[leaf + 4], leaves[leaf + 5], closest);
+				continue;
+			}
+			int left = node + 1;
+			int right = nodes[2 * node];
+			double tLeft = intersectNode(left, ax, ay, az, bx, by, bz, closest.t);
+			double tRight = intersectNode(right, ax, ay, az, bx, by, bz, closest.t);
+			// Pushes the far child first so the near child is visited first
+			if (tLeft <= tRight) {
+				if (tRight != Double.POSITIVE_INFINITY)
+					stack[top++] = right;
+				if (tLeft != Double.POSITIVE_INFINITY)
+					stack[top++] = left;
+			} else {
+				if (tLeft != Double.POSITIVE_INFINITY)
+					stack[top++] = left;
+				stack[top++] = right;
+			}
+		}
+		// Only the winning surface builds a Hit. It recomputes the distance, since the
+		// kernels may round it differently than the shape does.
+		if (closest.surface < 0)
+			return null;
+		Hit hit = store.surface(closest.surface).intersect(ray);
+		if (hit != null)
+			ray.shrink(hit.t());
+		return hit;
+	}
+
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		return occluder(ray, tMax) != null;
+	}
+
+	@Override
+	public Surface occluder(Ray ray, double tMax) {
+		if (numNodes == 0)
+			return null;
+		Point o = ray.source();
+		double invDx = ray.invDx(), invDy = ray.invDy(), invDz = ray.invDz();
+		double ax = (originX - o.x) * invDx, ay = (originY - o.y) * invDy, az = (originZ - o.z) * invDz;
+		double bx = scaleX * invDx, by = scaleY * invDy, bz = scaleZ * invDz;
+
+		int[] stack = traversals.get().stack;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (intersectNode(node, ax, ay, az, bx, by, bz, tMax) == Double.POSITIVE_INFINITY)
+				continue;
+			if (nodes[2 * node + 1] > 0) {
+				int leaf = 6 * nodes[2 * node];
+				int surface = store.blocker(ray, leaves[leaf], leaves[leaf + 1], leaves[leaf + 2], leaves[leaf + 3],
+						leaves[leaf + 4], leaves[leaf + 5], tMax);
+				if (surface >= 0)
+					return store.surface(surface);
+				continue;
+			}
+			stack[top++] = nodes[2 * node];
+			stack[top++] = node + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * The slab test of a node for a whole packet, in interval arithmetic: the
+	 * distances of all the rays along an axis lie in (bounds - sources) * inverse
+	 * directions, where each factor is an interval.
+	 * 
+	 * @return a lower bound of the distances at which the rays of the packet enter
+	 *         the node, or infinity if none of them can hit it before tMax.
+	 */
+	private double intersectNode(int node, RayPacket p, double tMax) {
+		int base = 6 * node;
+		double tNear = Double.NEGATIVE_INFINITY;
+		double tFar = tMax;
+		if (p.boundedX) {
+			double lo = originX + (quantizedBounds[base] & 0xFFFF) * scaleX;
+			double hi = originX + (quantizedBounds[base + 3] & 0xFFFF) * scaleX;
+			boolean positive = p.minInvDx > 0;
+			tNear = Math.max(tNear, lowerBound(positive ? lo : hi, p.minOx, p.maxOx, p.minInvDx, p.maxInvDx));
+			tFar = Math.min(tFar, upperBound(positive ? hi : lo, p.minOx, p.maxOx, p.minInvDx, p.maxInvDx));
+		}
+		if (p.boundedY) {
+			double lo = originY + (quantizedBounds[base + 1] & 0xFFFF) * scaleY;
+			double hi = originY + (quantizedBounds[base + 4] & 0xFFFF) * scaleY;
+			boolean positive = p.minInvDy > 0;
+			tNear = Math.max(tNear, lowerBound(positive ? lo : hi, p.minOy, p.maxOy, p.minInvDy, p.maxInvDy));
+			tFar = Math.min(tFar, upperBound(positive ? hi : lo, p.minOy, p.maxOy, p.minInvDy, p.maxInvDy));
+		}
+		if (p.boundedZ) {
+			double lo = originZ + (quantizedBounds[base + 2] & 0xFFFF) * scaleZ;
+			double hi = originZ + (quantizedBounds[base + 5] & 0xFFFF) * scaleZ;
+			boolean positive = p.minInvDz > 0;
+			tNear = Math.max(tNear, lowerBound(positive ? lo : hi, p.minOz, p.maxOz, p.minInvDz, p.maxInvDz));
+			tFar = Math.min(tFar, upperBound(positive ? hi : lo, p.minOz, p.maxOz, p.minInvDz, p.maxInvDz));
+		}
+		tFar *= ROBUST_FACTOR;
+		if (tNear > tFar || tFar < Ops.epsilon)
+			return Double.POSITIVE_INFINITY;
+		return tNear;
+	}
+
+	// The bounds of (plane - [minO, maxO]) * [minInv, maxInv]
+	private static double lowerBound(double plane, double minO, double maxO, double minInv, double maxInv) {
+		double a = plane - maxO, b = plane - minO;
+		return Math.min(Math.min(a * minInv, a * maxInv), Math.min(b * minInv, b * maxInv));
+	}
+
+	private static double upperBound(double plane, double minO, double maxO, double minInv, double maxInv) {
+		double a = plane - maxO, b = plane - minO;
+		return Math.max(Math.max(a * minInv, a * maxInv), Math.max(b * minInv, b * maxInv));
+	}
+
+	/**
+	 * Traverses the tree once for the whole packet. A node is skipped when the
+	 * interval test shows that no ray of the packet can hit it. Otherwise the
+	 * rays are tested one by one until the first one that enters the node is
+	 * found; the rays before it are skipped in the whole subtree. At a leaf, only
+	 * the rays that enter it are tested against its primitives. Since the hit of
+	 * each ray is decided by exact per-ray tests, the results are the same as with
+	 * closestHit. Packets whose directions don't share their signs are traced ray
+	 * by ray.
+	 */
+	@Override
+	public void closestHits(RayPacket packet, Hit[] hits) {
+		int n = packet.size();
+		if (numNodes == 0 || !packet.isCoherent()) {
+			Accelerator.super.closestHits(packet, hits);
+			return;
+		}
+		Candidate[] closest = new Candidate[n];
+		double[] tClosest = new double[n];
+		for (int i = 0; i < n; ++i) {
+			closest[i] = new Candidate();
+			tClosest[i] = closest[i].t;
+		}
+		double[] slabs = slabCoefficients(packet);
+		// The distance beyond which no ray of the packet can improve its hit
+		double tLimit = Double.POSITIVE_INFINITY;
+
+		// Pairs of a node and the first ray that may hit it
+		int[] stack = new int[2 * (2 * depth + 1)];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int first = stack[--top];
+			int node = stack[--top];
+			if (intersectNode(node, packet, tLimit) == Double.POSITIVE_INFINITY)
+				continue;
+			first = firstEntering(node, slabs, first, n, tClosest);
+			if (first == n)
+				continue;
+			if (nodes[2 * node + 1] > 0) {
+				int leaf = 6 * nodes[2 * node];
+				for (int i = first; i < n; ++i) {
+					if (i > first && !entersNode(node, slabs, i, tClosest[i]))
+						continue;
+					Ray ray = packet.ray(i);
+					store.closestSphere(ray, leaves[leaf], leaves[leaf + 1], closest[i]);
+					store.closestBox(ray, leaves[leaf + 2], leaves[leaf + 3], closest[i]);
+					store.closestOther(ray, leaves[leaf + 4], leaves[leaf + 5], closest[i]);
+					tClosest[i] = closest[i].t;
+				}
+				tLimit = Double.NEGATIVE_INFINITY;
+				for (double t : tClosest)
+					tLimit = Math.max(tLimit, t);
+				continue;
+			}
+			// Visits first the child that the first ray enters first
+			int left = node + 1;
+			int right = nodes[2 * node];
+			double tLeft = entryDistance(left, slabs, first, tClosest[first]);
+			double tRight = entryDistance(right, slabs, first, tClosest[first]);
+			int near = tLeft <= tRight ? left : right;
+			stack[top++] = near == left ? right : left;
+			stack[top++] = first;
+			stack[top++] = near;
+			stack[top++] = first;
+		}
+		for (int i = 0; i < n; ++i)
+			hits[i] = closest[i].surface < 0 ? null : store.surface(closest[i].surface).intersect(packet.ray(i));
+	}
+
+	/**
+	 * The packet version of isOccluded, see closestHits. Rays drop out of the
+	 * traversal as they get blocked, and it stops when all of them are.
+	 */
+	@Override
+	public void occluded(RayPacket packet, double[] tMax, boolean[] occluded) {
+		int n = packet.size();
+		if (numNodes == 0 || !packet.isCoherent()) {
+			Accelerator.super.occluded(packet, tMax, occluded);
+			return;
+		}
+		int remaining = 0;
+		double tLimit = Double.NEGATIVE_INFINITY;
+		// A blocked ray gets a limit of -infinity, so it enters no node
+		double[] tActive = new double[n];
+		for (int i = 0; i < n; ++i) {
+			tActive[i] = occluded[i] ? Double.NEGATIVE_INFINITY : tMax[i];
+			if (!occluded[i]) {
+				++remaining;
+				tLimit = Math.max(tLimit, tMax[i]);
+			}
+		}
+		double[] slabs = slabCoefficients(packet);
+
+		int[] stack = new int[2 * (2 * depth + 1)];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = 0;
+		while (top > 0 && remaining > 0) {
+			int first = stack[--top];
+			int node = stack[--top];
+			if (intersectNode(node, packet, tLimit) == Double.POSITIVE_INFINITY)
+				continue;
+			first = firstEntering(node, slabs, first, n, tActive);
+			if (first == n)
+				continue;
+			if (nodes[2 * node + 1] > 0) {
+				int leaf = 6 * nodes[2 * node];
+				for (int i = first; i < n; ++i) {
+					if (i > first && !entersNode(node, slabs, i, tActive[i]))
+						continue;
+					Ray ray = packet.ray(i);
+					if (store.anySphere(ray, leaves[leaf], leaves[leaf + 1], tMax[i])
+							|| store.anyBox(ray, leaves[leaf + 2], leaves[leaf + 3], tMax[i])
+							|| store.anyOther(ray, leaves[leaf + 4], leaves[leaf + 5], tMax[i])) {
+						occluded[i] = true;
+						tActive[i] = Double.NEGATIVE_INFINITY;
+						--remaining;
+					}
+				}
+				continue;
+			}
+			stack[top++] = nodes[2 * node];
+			stack[top++] = first;
+			stack[top++] = node + 1;
+			stack[top++] = first;
+		}
+	}
+
+	// The index of the first ray from the given one that enters the node before
+	// its tMax, or n if there is none
+	private int firstEntering(int node, double[] slabs, int from, int n, double[] tMax) {
+		int i = from;
+		while (i < n && !entersNode(node, slabs, i, tMax[i]))
+			++i;
+		return i;
+	}
+
+	// The a and b coefficients of intersectNode for each ray of the packet, six
+	// per ray
+	private double[] slabCoefficients(RayPacket packet) {
+		double[] res = new double[6 * packet.size()];
+		for (int i = 0; i < packet.size(); ++i) {
+			double invDx = 1.0 / packet.dx[i], invDy = 1.0 / packet.dy[i], invDz = 1.0 / packet.dz[i];
+			res[6 * i] = (originX - packet.ox[i]) * invDx;
+			res[6 * i + 1] = (originY - packet.oy[i]) * invDy;
+			res[6 * i + 2] = (originZ - packet.oz[i]) * invDz;
+			res[6 * i + 3] = scaleX * invDx;
+			res[6 * i + 4] = scaleY * invDy;
+			res[6 * i + 5] = scaleZ * invDz;
+		}
+		return res;
+	}
+
+	private boolean entersNode(int node, double[] slabs, int i, double tMax) {
+		return entryDistance(node, slabs, i, tMax) != Double.POSITIVE_INFINITY;
+	}
+
+	private double entryDistance(int node, double[] slabs, int i, double tMax) {
+		int k = 6 * i;
+		return intersectNode(node, slabs[k], slabs[k + 1], slabs[k + 2], slabs[k + 3], slabs[k + 4], slabs[k + 5],
+				tMax);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"flat BVH over %d surfaces (%d nodes, depth %d, %s node bytes (%s as BVH objects) and %s geometry bytes"
+						+ " per surface, %s)",
+				numSurfaces, numNodes, depth, BVH.bytesPerSurface(nodeBytes(), numSurfaces),
+				BVH.bytesPerSurface(objectNodeBytes(), numSurfaces), BVH.bytesPerSurface(store.bytes(), numSurfaces),
+				GeometryStore.KERNELS);
+	}
+}
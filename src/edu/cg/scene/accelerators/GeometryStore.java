@@ -0,0 +1,233 @@
+package edu.cg.scene.accelerators;
+
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.scene.objects.AxisAlignedBox;
+import edu.cg.scene.objects.Sphere;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * Compiled render geometry: spheres and boxes packed into contiguous double
+ * columns (struct of arrays), with a parallel array of surface indices that
+ * leads to the material. Surfaces of any other shape are kept as objects.
+ *
+ * The batch routines test a ray against a range of primitives without touching
+ * the Surface and Shape objects (see IntersectionKernels).
+ */
+class GeometryStore {
+	static final IntersectionKernels KERNELS = IntersectionKernels.load();
+
+	// The surfaces, indexed by their position in the scene
+	private final Surface[] surfaceTable;
+
+	// The columns are read directly by the kernels
+	final double[] sphereX, sphereY, sphereZ, sphereR2;
+	final int[] sphereSurface;
+	private int numSpheres = 0;
+
+	final double[] boxMinX, boxMinY, boxMinZ, boxMaxX, boxMaxY, boxMaxZ;
+	final int[] boxSurface;
+	private int numBoxes = 0;
+
+	private final int[] otherSurface;
+	private int numOthers = 0;
+
+	/**
+	 * The closest primitive found so far during a query.
+	 */
+	static class Candidate {
+		double t;
+		int surface = -1;
+
+		Candidate() {
+			this(Double.POSITIVE_INFINITY);
+		}
+
+		/**
+		 * @param tMax - only hits up to this distance are taken
+		 */
+		Candidate(double tMax) {
+			t = tMax;
+		}
+
+		/**
+		 * Makes this candidate the one new Candidate(tMax) would make.
+		 */
+		Candidate reset(double tMax) {
+			t = tMax;
+			surface = -1;
+			return this;
+		}
+
+		// Between hits at the same distance, the surface that appears first in the scene wins. A
+		// miss (at an infinite distance) isn't taken, even while there is no hit up to tMax.
+		void offer(double candidateT, int candidateSurface) {
+			if (candidateT < t || (candidateT == t && candidateT != Double.POSITIVE_INFINITY
+					&& (surface < 0 || candidateSurface < surface))) {
+				t = candidateT;
+				surface = candidateSurface;
+			}
+		}
+	}
+
+	/**
+	 * Creates an empty store.
+	 *
+	 * @param surfaceTable - all the surfaces, indexed by their position in the
+	 *                     scene
+	 */
+	GeometryStore(Surface[] surfaceTable) {
+		this.surfaceTable = surfaceTable;
+		int spheres = 0, boxes = 0, others = 0;
+		for (Surface surface : surfaceTable) {
+			if (surface.getShape() instanceof Sphere)
+				++spheres;
+			else if (surface.getShape() instanceof AxisAlignedBox)
+				++boxes;
+			else
+				++others;
+		}
+		sphereX = new double[spheres];
+		sphereY = new double[spheres];
+		sphereZ = new double[spheres];
+		sphereR2 = new double[spheres];
+		sphereSurface = new int[spheres];
+		boxMinX = new double[boxes];
+		boxMinY = new double[boxes];
+		boxMinZ = new double[boxes];
+		boxMaxX = new double[boxes];
+		boxMaxY = new double[boxes];
+		boxMaxZ = new double[boxes];
+		boxSurface = new int[boxes];
+		otherSurface = new int[others];
+	}
+
+	/**
+	 * Appends a surface to the column of its kind.
+	 *
+	 * @param surfaceIndex - the index of the surface in the surface table
+	 */
+	void add(int surfaceIndex) {
+		Surface surface = surfaceTable[surfaceIndex];
+		if (surface.getShape() instanceof Sphere) {
+			Sphere sphere = (Sphere) surface.getShape();
+			Point c = sphere.getCenter();
+			sphereX[numSpheres] = c.x;
+			sphereY[numSpheres] = c.y;
+			sphereZ[numSpheres] = c.z;
+			sphereR2[numSpheres] = Math.pow(sphere.getRadius(), 2);
+			sphereSurface[numSpheres++] = surfaceIndex;
+		} else if (surface.getShape() instanceof AxisAlignedBox) {
+			AxisAlignedBox box = (AxisAlignedBox) surface.getShape();
+			Point min = box.getMinPoint(), max = box.getMaxPoint();
+			boxMinX[numBoxes] = min.x;
+			boxMinY[numBoxes] = min.y;
+			boxMinZ[numBoxes] = min.z;
+			boxMaxX[numBoxes] = max.x;
+			boxMaxY[numBoxes] = max.y;
+			boxMaxZ[numBoxes] = max.z;
+			boxSurface[numBoxes++] = surfaceIndex;
+		} else {
+			otherSurface[numOthers++] = surfaceIndex;
+		}
+	}
+
+	int numSpheres() {
+		return numSpheres;
+	}
+
+	int numBoxes() {
+		return numBoxes;
+	}
+
+	int numOthers() {
+		return numOthers;
+	}
+
+	Surface surface(int surfaceIndex) {
+		return surfaceTable[surfaceIndex];
+	}
+
+	/**
+	 * @return the number of bytes taken by the columns.
+	 */
+	long bytes() {
+		return 36L * sphereX.length + 52L * boxMinX.length + 4L * otherSurface.length;
+	}
+
+	/**
+	 * Finds the closest hit of the ray with the spheres from, ..., to - 1.
+	 */
+	void closestSphere(Ray ray, int from, int to, Candidate closest) {
+		if (from < to)
+			KERNELS.closestSphere(this, ray, from, to, closest);
+	}
+
+	/**
+	 * Checks if the ray hits one of the spheres from, ..., to - 1 before tMax.
+	 */
+	boolean anySphere(Ray ray, int from, int to, double tMax) {
+		return from < to && KERNELS.anySphere(this, ray, from, to, tMax);
+	}
+
+	/**
+	 * Finds the closest hit of the ray with the boxes from, ..., to - 1.
+	 */
+	void closestBox(Ray ray, int from, int to, Candidate closest) {
+		if (from < to)
+			KERNELS.closestBox(this, ray, from, to, closest);
+	}
+
+	/**
+	 * Checks if the ray hits one of the boxes from, ..., to - 1 before tMax.
+	 */
+	boolean anyBox(Ray ray, int from, int to, double tMax) {
+		return from < to && KERNELS.anyBox(this, ray, from, to, tMax);
+	}
+
+	/**
+	 * Finds the closest hit of the ray with the other surfaces from, ..., to - 1.
+	 */
+	void closestOther(Ray ray, int from, int to, Candidate closest) {
+		for (int i = from; i < to; ++i) {
+			double t = surfaceTable[otherSurface[i]].distance(ray, closest.t);
+			if (t != Double.POSITIVE_INFINITY)
+				closest.offer(t, otherSurface[i]);
+		}
+	}
+
+	/**
+	 * Checks if the ray hits one of the other surfaces from, ..., to - 1 before
+	 * tMax.
+	 */
+	boolean anyOther(Ray ray, int from, int to, double tMax) {
+		for (int i = from; i < to; ++i)
+			if (surfaceTable[otherSurface[i]].intersects(ray, tMax))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Finds a primitive of the given ranges of spheres, boxes and other surfaces
+	 * that the ray hits before tMax. The ranges are tested as a batch first, and
+	 * only a range with a hit is narrowed down one primitive at a time.
+	 *
+	 * @return the index of its surface in the surface table, or -1.
+	 */
+	int blocker(Ray ray, int sphereFrom, int sphereTo, int boxFrom, int boxTo, int otherFrom, int otherTo,
+			double tMax) {
+		if (anySphere(ray, sphereFrom, sphereTo, tMax))
+			for (int i = sphereFrom; i < sphereTo; ++i)
+				if (anySphere(ray, i, i + 1, tMax))
+					return sphereSurface[i];
+		if (anyBox(ray, boxFrom, boxTo, tMax))
+			for (int i = boxFrom; i < boxTo; ++i)
+				if (anyBox(ray, i, i + 1, tMax))
+					return boxSurface[i];
+		for (int i = otherFrom; i < otherTo; ++i)
+			if (surfaceTable[otherSurface[i]].intersects(ray, tMax))
+				return otherSurface[i];
+		return -1;
+	}
+}
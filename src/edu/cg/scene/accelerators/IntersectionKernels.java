@@ -0,0 +1,66 @@
+package edu.cg.scene.accelerators;
+
+import edu.cg.algebra.Ray;
+import edu.cg.scene.accelerators.GeometryStore.Candidate;
+
+/**
+ * Ray-primitive intersection routines over the packed columns of a
+ * GeometryStore. There are two flavors: one ray against a range of primitives
+ * and a batch of rays against one primitive.
+ *
+ * All implementations must find exactly the same distances as Sphere.intersect
+ * and AxisAlignedBox.intersect. A primitive that is not hit (or is hit at a
+ * distance below epsilon) is at an infinite distance.
+ */
+interface IntersectionKernels {
+	/**
+	 * Offers the distances to the spheres from, ..., to - 1 to the candidate.
+	 */
+	void closestSphere(GeometryStore store, Ray ray, int from, int to, Candidate closest);
+
+	/**
+	 * @return true if one of the spheres from, ..., to - 1 is hit before tMax.
+	 */
+	boolean anySphere(GeometryStore store, Ray ray, int from, int to, double tMax);
+
+	/**
+	 * Offers the distances to the boxes from, ..., to - 1 to the candidate.
+	 */
+	void closestBox(GeometryStore store, Ray ray, int from, int to, Candidate closest);
+
+	/**
+	 * @return true if one of the boxes from, ..., to - 1 is hit before tMax.
+	 */
+	boolean anyBox(GeometryStore store, Ray ray, int from, int to, double tMax);
+
+	/**
+	 * Computes the distances of n rays to one sphere.
+	 *
+	 * @param ox, oy, oz - the ray sources
+	 * @param dx, dy, dz - the (normalized) ray directions
+	 * @param t          - receives the distance of each ray
+	 */
+	void sphereDistances(double[] ox, double[] oy, double[] oz, double[] dx, double[] dy, double[] dz, int n,
+			GeometryStore store, int sphere, double[] t);
+
+	/**
+	 * Computes the distances of n rays to one box, see sphereDistances.
+	 */
+	void boxDistances(double[] ox, double[] oy, double[] oz, double[] dx, double[] dy, double[] dz, int n,
+			GeometryStore store, int box, double[] t);
+
+	/**
+	 * Uses the Vector API (jdk.incubator.vector) when the vector kernels were
+	 * built (from the src-vector source root) and the module is present, and plain
+	 * Java otherwise. The vector kernels are loaded by name so that this class
+	 * doesn't depend on the module.
+	 */
+	static IntersectionKernels load() {
+		try {
+			return (IntersectionKernels) Class.forName("edu.cg.scene.accelerators.VectorKernels")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return new ScalarKernels();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package edu.cg.scene.accelerators;
+
+import java.util.List;
+
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ray;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * Tests every surface against every ray. This is the right choice for a handful
+ * of surfaces and for unbounded surfaces that can't be put in a spatial
+ * structure.
+ */
+public class LinearAccelerator implements Accelerator {
+	private final Surface[] surfaces;
+
+	public LinearAccelerator(List<Surface> surfaces) {
+		this.surfaces = surfaces.toArray(new Surface[surfaces.size()]);
+	}
+
+	@Override
+	public Hit closestHit(Ray ray) {
+		// Between hits at the same distance, the first surface wins
+		Surface closest = null;
+		double tClosest = ray.tMax();
+		for (Surface surface : surfaces) {
+			double t = surface.distance(ray, tClosest);
+			if (t != Double.POSITIVE_INFINITY && (closest == null || t < tClosest)) {
+				closest = surface;
+				tClosest = t;
+			}
+		}
+		if (closest == null)
+			return null;
+		ray.shrink(tClosest);
+		return closest.hitAt(ray, tClosest);
+	}
+
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		for (Surface surface : surfaces)
+			if (surface.intersects(ray, tMax))
+				return true;
+		return false;
+	}
+
+	@Override
+	public Surface occluder(Ray ray, double tMax) {
+		for (Surface surface : surfaces)
+			if (surface.intersects(ray, tMax))
+				return surface;
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "linear list of " + surfaces.length + " surfaces";
+	}
+}
@@ -0,0 +1,107 @@
+package edu.cg.scene.accelerators;
+
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+
+/**
+ * A bundle of coherent rays (e.g. the primary rays of a tile of pixels, or
+ * their shadow rays to one light) that are traced together. The sources and
+ * directions are kept in columns for the packet kernels, and the bundle is
+ * bounded by intervals: the box of the sources and, per axis, the range of the
+ * inverse directions. A node of an accelerator can be culled for the whole
+ * packet when interval arithmetic shows that no ray of the packet can enter it.
+ */
+public class RayPacket {
+	private final Ray[] rays;
+	private final int size;
+	final double[] ox, oy, oz, dx, dy, dz;
+
+	// The intervals that bound the packet. An axis along which the directions
+	// don't share a sign (or some direction is 0) can't be bounded and gets
+	// infinite inverse direction bounds, which turn off culling along it.
+	final double minOx, minOy, minOz, maxOx, maxOy, maxOz;
+	final double minInvDx, minInvDy, minInvDz, maxInvDx, maxInvDy, maxInvDz;
+	final boolean boundedX, boundedY, boundedZ;
+
+	/**
+	 * @param rays - the rays of the packet, rays[0], ..., rays[size - 1]
+	 * @param size - the number of rays
+	 */
+	public RayPacket(Ray[] rays, int size) {
+		this.rays = rays;
+		this.size = size;
+		ox = new double[size];
+		oy = new double[size];
+		oz = new double[size];
+		dx = new double[size];
+		dy = new double[size];
+		dz = new double[size];
+		for (int i = 0; i < size; ++i) {
+			Point o = rays[i].source();
+			Vec d = rays[i].direction();
+			ox[i] = o.x;
+			oy[i] = o.y;
+			oz[i] = o.z;
+			dx[i] = d.x;
+			dy[i] = d.y;
+			dz[i] = d.z;
+		}
+		minOx = min(ox);
+		minOy = min(oy);
+		minOz = min(oz);
+		maxOx = max(ox);
+		maxOy = max(oy);
+		maxOz = max(oz);
+		boundedX = sameSign(dx);
+		boundedY = sameSign(dy);
+		boundedZ = sameSign(dz);
+		// 1 / d is monotone on each side of 0, so the extreme directions give the
+		// extreme inverse directions
+		minInvDx = boundedX ? 1.0 / max(dx) : Double.NEGATIVE_INFINITY;
+		maxInvDx = boundedX ? 1.0 / min(dx) : Double.POSITIVE_INFINITY;
+		minInvDy = boundedY ? 1.0 / max(dy) : Double.NEGATIVE_INFINITY;
+		maxInvDy = boundedY ? 1.0 / min(dy) : Double.POSITIVE_INFINITY;
+		minInvDz = boundedZ ? 1.0 / max(dz) : Double.NEGATIVE_INFINITY;
+		maxInvDz = boundedZ ? 1.0 / min(dz) : Double.POSITIVE_INFINITY;
+	}
+
+	private double min(double[] values) {
+		double res = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < size; ++i)
+			res = Math.min(res, values[i]);
+		return res;
+	}
+
+	private double max(double[] values) {
+		double res = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < size; ++i)
+			res = Math.max(res, values[i]);
+		return res;
+	}
+
+	private boolean sameSign(double[] values) {
+		boolean positive = true, negative = true;
+		for (int i = 0; i < size; ++i) {
+			positive &= values[i] > 0;
+			negative &= values[i] < 0;
+		}
+		return size > 0 && (positive || negative);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Ray ray(int i) {
+		return rays[i];
+	}
+
+	/**
+	 * @return true if the directions share their signs along all the axes, so the
+	 *         interval bounds of the packet are useful for culling.
+	 */
+	public boolean isCoherent() {
+		return boundedX && boundedY && boundedZ;
+	}
+}
@@ -0,0 +1,221 @@
+package edu.cg.scene.accelerators;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import com.sun.management.ThreadMXBean;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Point;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * Builds a bounding volume hierarchy top-down using a binned surface area
+ * heuristic (SAH). The result is a tree of nodes whose leaves refer to ranges
+ * of the reordered surfaces array. The tree is consumed by BVH as is and
+ * flattened by FlatBVH.
+ */
+class SAHBuilder {
+	private static final int NUM_BINS = 16;
+	private static final int MAX_LEAF_SIZE = 4;
+	private static final double TRAVERSAL_COST = 1.0;
+	private static final double INTERSECTION_COST = 1.0;
+	private static final int MAX_DEPTH = 64;
+	// The number of nodes allocated to measure the size of one
+	private static final int MEASURED_NODES = 4096;
+
+	/**
+	 * The heap bytes of a node and its bounds on the running JVM (with its object
+	 * headers, reference size and padding), or -1 if the JVM can't tell, see
+	 * measureNodeBytes.
+	 */
+	static final long NODE_BYTES = measureNodeBytes();
+
+	static class Node {
+		BoundingBox bounds;
+		Node left, right;
+		// leaf data: a range in the reordered surfaces array
+		int start, count;
+
+		boolean isLeaf() {
+			return left == null;
+		}
+	}
+
+	/**
+	 * Allocates nodes with their bounds on this thread and divides the bytes the
+	 * thread allocated meanwhile by their number.
+	 */
+	private static long measureNodeBytes() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean))
+			return -1;
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long id = Thread.currentThread().getId();
+		Node[] nodes = new Node[MEASURED_NODES];
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < nodes.length; ++i) {
+			nodes[i] = new Node();
+			nodes[i].bounds = new BoundingBox(0, 0, 0, 0, 0, 0);
+		}
+		long bytes = threads.getThreadAllocatedBytes(id) - before;
+		return bytes < 0 ? -1 : bytes / nodes.length;
+	}
+
+	final Surface[] surfaces;
+	// The index of each surface in the list given to the constructor, used to
+	// break ties between hits at the same distance the way a linear scan would.
+	final int[] order;
+	private final BoundingBox[] boxes;
+	private final Point[] centroids;
+	final Node root;
+	int numNodes = 0;
+	int depth = 0;
+
+	/**
+	 * Builds a hierarchy over the given surfaces.
+	 *
+	 * @param surfaces - bounded surfaces (Surface.bounds() must not be null)
+	 */
+	SAHBuilder(List<Surface> surfaces) {
+		int n = surfaces.size();
+		this.surfaces = surfaces.toArray(new Surface[n]);
+		this.order = new int[n];
+		this.boxes = new BoundingBox[n];
+		this.centroids = new Point[n];
+		for (int i = 0; i < n; ++i) {
+			order[i] = i;
+			boxes[i] = this.surfaces[i].bounds();
+			centroids[i] = boxes[i].center();
+		}
+		root = n == 0 ? null : build(0, n, 1);
+	}
+
+	private Node build(int start, int end, int level) {
+		Node node = new Node();
+		++numNodes;
+		depth = Math.max(depth, level);
+
+		BoundingBox bounds = BoundingBox.empty();
+		BoundingBox centroidBounds = BoundingBox.empty();
+		for (int i = start; i < end; ++i) {
+			bounds = bounds.union(boxes[i]);
+			centroidBounds = centroidBounds.union(centroids[i]);
+		}
+		node.bounds = bounds;
+
+		int count = end - start;
+		if (count == 1 || level >= MAX_DEPTH)
+			return makeLeaf(node, start, count);
+
+		// Finds the best split over all axes using binned SAH
+		int bestAxis = -1;
+		int bestBin = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int axis = 0; axis < 3; ++axis) {
+			double cMin = centroidBounds.min(axis);
+			double extent = centroidBounds.extent(axis);
+			if (extent <= 0)
+				continue;
+			int[] binCounts = new int[NUM_BINS];
+			BoundingBox[] binBounds = new BoundingBox[NUM_BINS];
+			for (int b = 0; b < NUM_BINS; ++b)
+				binBounds[b] = BoundingBox.empty();
+			for (int i = start; i < end; ++i) {
+				int b = binOf(centroids[i], axis, cMin, extent);
+				binCounts[b]++;
+				binBounds[b] = binBounds[b].union(boxes[i]);
+			}
+
+			// Sweeps from the right to gather the areas of the right side of each split
+			double[] rightArea = new double[NUM_BINS];
+			int[] rightCount = new int[NUM_BINS];
+			BoundingBox acc = BoundingBox.empty();
+			int accCount = 0;
+			for (int b = NUM_BINS - 1; b > 0; --b) {
+				acc = acc.union(binBounds[b]);
+				accCount += binCounts[b];
+				rightArea[b] = acc.surfaceArea();
+				rightCount[b] = accCount;
+			}
+
+			acc = BoundingBox.empty();
+			accCount = 0;
+			for (int b = 0; b < NUM_BINS - 1; ++b) {
+				acc = acc.union(binBounds[b]);
+				accCount += binCounts[b];
+				if (accCount == 0 || rightCount[b + 1] == 0)
+					continue;
+				double cost = acc.surfaceArea() * accCount + rightArea[b + 1] * rightCount[b + 1];
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		double area = bounds.surfaceArea();
+		double leafCost = INTERSECTION_COST * count;
+		double splitCost = area > 0 ? TRAVERSAL_COST + INTERSECTION_COST * bestCost / area : leafCost;
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide - SAH can't separate them
+			if (count <= MAX_LEAF_SIZE)
+				return makeLeaf(node, start, count);
+			mid = start + count / 2;
+		} else {
+			if (count <= MAX_LEAF_SIZE && leafCost <= splitCost)
+				return makeLeaf(node, start, count);
+			mid = partition(start, end, bestAxis, bestBin, centroidBounds.min(bestAxis),
+					centroidBounds.extent(bestAxis));
+		}
+
+		node.left = build(start, mid, level + 1);
+		node.right = build(mid, end, level + 1);
+		return node;
+	}
+
+	private static int binOf(Point centroid, int axis, double cMin, double extent) {
+		double c = axis == 0 ? centroid.x : (axis == 1 ? centroid.y : centroid.z);
+		int b = (int) (NUM_BINS * (c - cMin) / extent);
+		return b < 0 ? 0 : (b >= NUM_BINS ? NUM_BINS - 1 : b);
+	}
+
+	private int partition(int start, int end, int axis, int splitBin, double cMin, double extent) {
+		int i = start;
+		int j = end - 1;
+		while (i <= j) {
+			if (binOf(centroids[i], axis, cMin, extent) <= splitBin) {
+				++i;
+			} else {
+				swap(i, j);
+				--j;
+			}
+		}
+		return i;
+	}
+
+	private void swap(int i, int j) {
+		Surface s = surfaces[i];
+		surfaces[i] = surfaces[j];
+		surfaces[j] = s;
+		int k = order[i];
+		order[i] = order[j];
+		order[j] = k;
+		BoundingBox b = boxes[i];
+		boxes[i] = boxes[j];
+		boxes[j] = b;
+		Point c = centroids[i];
+		centroids[i] = centroids[j];
+		centroids[j] = c;
+	}
+
+	private static Node makeLeaf(Node node, int start, int count) {
+		node.start = start;
+		node.count = count;
+		return node;
+	}
+}
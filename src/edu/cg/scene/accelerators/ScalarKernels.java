@@ -0,0 +1,128 @@
+package edu.cg.scene.accelerators;
+
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.accelerators.GeometryStore.Candidate;
+
+/**
+ * The plain Java kernels, one primitive at a time.
+ */
+class ScalarKernels implements IntersectionKernels {
+	@Override
+	public void closestSphere(GeometryStore store, Ray ray, int from, int to, Candidate closest) {
+		Point o = ray.source();
+		Vec d = ray.direction();
+		double dx = d.x * 2.0, dy = d.y * 2.0, dz = d.z * 2.0;
+		for (int i = from; i < to; ++i) {
+			double t = sphereDistance(o.x, o.y, o.z, dx, dy, dz, store, i);
+			if (t <= closest.t)
+				closest.offer(t, store.sphereSurface[i]);
+		}
+	}
+
+	@Override
+	public boolean anySphere(GeometryStore store, Ray ray, int from, int to, double tMax) {
+		Point o = ray.source();
+		Vec d = ray.direction();
+		double dx = d.x * 2.0, dy = d.y * 2.0, dz = d.z * 2.0;
+		for (int i = from; i < to; ++i)
+			if (sphereDistance(o.x, o.y, o.z, dx, dy, dz, store, i) < tMax)
+				return true;
+		return false;
+	}
+
+	@Override
+	public void closestBox(GeometryStore store, Ray ray, int from, int to, Candidate closest) {
+		Point o = ray.source();
+		for (int i = from; i < to; ++i) {
+			double t = boxDistance(o.x, o.y, o.z, ray.invDx(), ray.invDy(), ray.invDz(), store, i);
+			if (t <= closest.t)
+				closest.offer(t, store.boxSurface[i]);
+		}
+	}
+
+	@Override
+	public boolean anyBox(GeometryStore store, Ray ray, int from, int to, double tMax) {
+		Point o = ray.source();
+		for (int i = from; i < to; ++i)
+			if (boxDistance(o.x, o.y, o.z, ray.invDx(), ray.invDy(), ray.invDz(), store, i) < tMax)
+				return true;
+		return false;
+	}
+
+	@Override
+	public void sphereDistances(double[] ox, double[] oy, double[] oz, double[] dx, double[] dy, double[] dz, int n,
+			GeometryStore store, int sphere, double[] t) {
+		for (int i = 0; i < n; ++i)
+			t[i] = sphereDistance(ox[i], oy[i], oz[i], dx[i] * 2.0, dy[i] * 2.0, dz[i] * 2.0, store, sphere);
+	}
+
+	@Override
+	public void boxDistances(double[] ox, double[] oy, double[] oz, double[] dx, double[] dy, double[] dz, int n,
+			GeometryStore store, int box, double[] t) {
+		for (int i = 0; i < n; ++i)
+			t[i] = boxDistance(ox[i], oy[i], oz[i], 1.0 / dx[i], 1.0 / dy[i], 1.0 / dz[i], store, box);
+	}
+
+	// (dx, dy, dz) is twice the ray direction. Same as Sphere.intersect: a ray that
+	// starts inside the sphere doesn't hit it.
+	static double sphereDistance(double ox, double oy, double oz, double dx, double dy, double dz,
+			GeometryStore store, int i) {
+		double ocx = ox - store.sphereX[i], ocy = oy - store.sphereY[i], ocz = oz - store.sphereZ[i];
+		double B = dx * ocx + dy * ocy + dz * ocz;
+		double C = (ocx * ocx + ocy * ocy + ocz * ocz) - store.sphereR2[i];
+		double delta = Math.pow(B, 2) - 4 * C;
+		if (delta < 0)
+			return Double.POSITIVE_INFINITY;
+		double t0 = (-B + Math.sqrt(delta)) / 2.0;
+		double t1 = (-B - Math.sqrt(delta)) / 2.0;
+		if (t0 > Ops.epsilon && t1 > Ops.epsilon)
+			return Math.min(t0, t1);
+		return Double.POSITIVE_INFINITY;
+	}
+
+	// The slab test of AxisAlignedBox, with the reciprocal of the ray direction.
+	// The near and far planes of each slab are picked by its sign, like the sign
+	// bits of Ray, and a ray that lies on a slab plane gets NaN, which is ignored.
+	static double boxDistance(double ox, double oy, double oz, double invDx, double invDy, double invDz,
+			GeometryStore store, int i) {
+		double tNear = Double.NEGATIVE_INFINITY;
+		double tFar = Double.POSITIVE_INFINITY;
+
+		double t1 = ((invDx < 0 ? store.boxMaxX[i] : store.boxMinX[i]) - ox) * invDx;
+		double t2 = ((invDx < 0 ? store.boxMinX[i] : store.boxMaxX[i]) - ox) * invDx;
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+		if (tNear > tFar || tFar < Ops.epsilon)
+			return Double.POSITIVE_INFINITY;
+
+		t1 = ((invDy < 0 ? store.boxMaxY[i] : store.boxMinY[i]) - oy) * invDy;
+		t2 = ((invDy < 0 ? store.boxMinY[i] : store.boxMaxY[i]) - oy) * invDy;
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+		if (tNear > tFar || tFar < Ops.epsilon)
+			return Double.POSITIVE_INFINITY;
+
+		t1 = ((invDz < 0 ? store.boxMaxZ[i] : store.boxMinZ[i]) - oz) * invDz;
+		t2 = ((invDz < 0 ? store.boxMinZ[i] : store.boxMaxZ[i]) - oz) * invDz;
+		if (t1 > tNear)
+			tNear = t1;
+		if (t2 < tFar)
+			tFar = t2;
+		if (tNear > tFar || tFar < Ops.epsilon)
+			return Double.POSITIVE_INFINITY;
+
+		return tNear < Ops.epsilon ? Double.POSITIVE_INFINITY : tNear;
+	}
+
+	@Override
+	public String toString() {
+		return "scalar kernels";
+	}
+}
@@ -0,0 +1,299 @@
+package edu.cg.scene.accelerators;
+
+import java.util.List;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * A uniform grid over bounded surfaces, traversed with a 3D-DDA. Every cell
+ * holds the surfaces whose bounding boxes overlap it. The grid is built in
+ * linear time (one counting pass and one filling pass), which makes it cheap to
+ * rebuild and a good fit for densely packed, evenly spread scenes.
+ *
+ * In two-level mode, cells that hold many surfaces get a grid of their own.
+ */
+public class UniformGrid implements Accelerator {
+	// The number of cells per surface the resolution heuristic aims for
+	private static final double DENSITY = 3.0;
+	private static final int MAX_RESOLUTION = 128;
+	private static final int MAX_SUB_GRID_RESOLUTION = 16;
+	// A top level cell with more surfaces than this gets its own grid in two-level mode
+	private static final int SUB_GRID_THRESHOLD = 16;
+
+	// Shared with the sub-grids. The index of a surface is its position in the
+	// list given to the constructor and is used to break ties between hits at the
+	// same distance the way a linear scan would.
+	private final Surface[] surfaces;
+	private final BoundingBox bounds;
+	private final int nx, ny, nz;
+	private final double cellX, cellY, cellZ;
+	// The surfaces of cell c are cellItems[cellStart[c]], ..., cellItems[cellStart[c + 1] - 1]
+	private final int[] cellStart;
+	private final int[] cellItems;
+	private final UniformGrid[] subGrids;
+	private int numSubGrids = 0;
+
+	// The closest hit found so far during a traversal. Only its distance is kept,
+	// the Hit is built once the traversal is done.
+	private static class Closest {
+		double t = Double.POSITIVE_INFINITY;
+		int index = -1;
+
+		Closest reset(double tMax) {
+			t = tMax;
+			index = -1;
+			return this;
+		}
+
+		// A hit at tMax itself is still taken
+		void offer(double candidateT, int candidateIndex) {
+			if (candidateT < t || (candidateT == t && (index < 0 || candidateIndex < index))) {
+				t = candidateT;
+				index = candidateIndex;
+			}
+		}
+	}
+
+	// The closest hit of the query of each thread, so a query doesn't allocate one
+	private static final ThreadLocal<Closest> CLOSEST = ThreadLocal.withInitial(Closest::new);
+
+	/**
+	 * Builds a grid over the given surfaces.
+	 *
+	 * @param surfaces - bounded surfaces (Surface.bounds() must not be null)
+	 * @param twoLevel - whether crowded cells get grids of their own
+	 */
+	public UniformGrid(List<Surface> surfaces, boolean twoLevel) {
+		this(surfaces.toArray(new Surface[surfaces.size()]), twoLevel);
+	}
+
+	private UniformGrid(Surface[] surfaces, boolean twoLevel) {
+		this(surfaces, boxesOf(surfaces), allIndices(surfaces.length), unionOf(boxesOf(surfaces)),
+				MAX_RESOLUTION, twoLevel);
+	}
+
+	private UniformGrid(Surface[] surfaces, BoundingBox[] boxes, int[] items, BoundingBox bounds,
+			int maxResolution, boolean twoLevel) {
+		this.surfaces = surfaces;
+		this.bounds = padFlatAxes(bounds);
+
+		int n = items.length;
+		double ex = this.bounds.extent(0), ey = this.bounds.extent(1), ez = this.bounds.extent(2);
+		double cellsPerUnit = Math.cbrt(DENSITY * Math.max(n, 1) / (ex * ey * ez));
+		nx = resolution(ex * cellsPerUnit, maxResolution);
+		ny = resolution(ey * cellsPerUnit, maxResolution);
+		nz = resolution(ez * cellsPerUnit, maxResolution);
+		cellX = ex / nx;
+		cellY = ey / ny;
+		cellZ = ez / nz;
+
+		// Counting pass
+		int numCells = nx * ny * nz;
+		cellStart = new int[numCells + 1];
+		for (int item : items)
+			forEachCell(boxes[item], c -> ++cellStart[c + 1]);
+		for (int c = 0; c < numCells; ++c)
+			cellStart[c + 1] += cellStart[c];
+
+		// Filling pass
+		cellItems = new int[cellStart[numCells]];
+		int[] cursor = new int[numCells];
+		for (int item : items)
+			forEachCell(boxes[item], c -> cellItems[cellStart[c] + cursor[c]++] = item);
+
+		subGrids = twoLevel ? new UniformGrid[numCells] : null;
+		if (twoLevel) {
+			for (int c = 0; c < numCells; ++c) {
+				int count = cellStart[c + 1] - cellStart[c];
+				if (count <= SUB_GRID_THRESHOLD)
+					continue;
+				int[] cellSurfaces = new int[count];
+				System.arraycopy(cellItems, cellStart[c], cellSurfaces, 0, count);
+				subGrids[c] = new UniformGrid(surfaces, boxes, cellSurfaces, cellBounds(c), MAX_SUB_GRID_RESOLUTION,
+						false);
+				++numSubGrids;
+			}
+		}
+	}
+
+	private static BoundingBox[] boxesOf(Surface[] surfaces) {
+		BoundingBox[] boxes = new BoundingBox[surfaces.length];
+		for (int i = 0; i < surfaces.length; ++i)
+			boxes[i] = surfaces[i].bounds();
+		return boxes;
+	}
+
+	private static int[] allIndices(int n) {
+		int[] indices = new int[n];
+		for (int i = 0; i < n; ++i)
+			indices[i] = i;
+		return indices;
+	}
+
+	private static BoundingBox unionOf(BoundingBox[] boxes) {
+		BoundingBox bounds = BoundingBox.empty();
+		for (BoundingBox box : boxes)
+			bounds = bounds.union(box);
+		return bounds.isEmpty() ? new BoundingBox(new Point(), new Point()) : bounds;
+	}
+
+	// Gives a thickness to axes with no extent (e.g. a scene of coplanar boxes)
+	private static BoundingBox padFlatAxes(BoundingBox b) {
+		double px = b.extent(0) > 0 ? 0 : Ops.epsilon;
+		double py = b.extent(1) > 0 ? 0 : Ops.epsilon;
+		double pz = b.extent(2) > 0 ? 0 : Ops.epsilon;
+		return new BoundingBox(b.minX - px, b.minY - py, b.minZ - pz, b.maxX + px, b.maxY + py, b.maxZ + pz);
+	}
+
+	private static int resolution(double cells, int maxResolution) {
+		return (int) Math.max(1, Math.min(maxResolution, Math.round(cells)));
+	}
+
+	private interface CellVisitor {
+		void visit(int cell);
+	}
+
+	private void forEachCell(BoundingBox box, CellVisitor visitor) {
+		int x0 = cellIndex(box.minX, bounds.minX, cellX, nx), x1 = cellIndex(box.maxX, bounds.minX, cellX, nx);
+		int y0 = cellIndex(box.minY, bounds.minY, cellY, ny), y1 = cellIndex(box.maxY, bounds.minY, cellY, ny);
+		int z0 = cellIndex(box.minZ, bounds.minZ, cellZ, nz), z1 = cellIndex(box.maxZ, bounds.minZ, cellZ, nz);
+		for (int z = z0; z <= z1; ++z)
+			for (int y = y0; y <= y1; ++y)
+				for (int x = x0; x <= x1; ++x)
+					visitor.visit(x + nx * (y + ny * z));
+	}
+
+	private static int cellIndex(double v, double min, double cellSize, int n) {
+		int i = (int) Math.floor((v - min) / cellSize);
+		return i < 0 ? 0 : (i >= n ? n - 1 : i);
+	}
+
+	private BoundingBox cellBounds(int c) {
+		int x = c % nx, y = (c / nx) % ny, z = c / (nx * ny);
+		return new BoundingBox(bounds.minX + x * cellX, bounds.minY + y * cellY, bounds.minZ + z * cellZ,
+				bounds.minX + (x + 1) * cellX, bounds.minY + (y + 1) * cellY, bounds.minZ + (z + 1) * cellZ);
+	}
+
+	@Override
+	public Hit closestHit(Ray ray) {
+		Closest closest = CLOSEST.get().reset(ray.tMax());
+		traverse(ray, closest, ray.tMax(), false);
+		if (closest.index < 0)
+			return null;
+		ray.shrink(closest.t);
+		return surfaces[closest.index].hitAt(ray, closest.t);
+	}
+
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		return traverse(ray, null, tMax, true);
+	}
+
+	@Override
+	public Surface occluder(Ray ray, double tMax) {
+		Closest blocker = CLOSEST.get().reset(tMax);
+		return traverse(ray, blocker, tMax, true) ? surfaces[blocker.index] : null;
+	}
+
+	/**
+	 * Walks the cells pierced by the ray in front to back order.
+	 *
+	 * @param closest     - collects the closest hit, or for occlusion queries (if
+	 *                    not null) the index of the blocker
+	 * @param tMax        - cells that the ray enters at or beyond this distance are
+	 *                    not visited
+	 * @param anyHit      - whether this is an occlusion query
+	 * @return for occlusion queries, true if a blocker was found.
+	 */
+	private boolean traverse(Ray ray, Closest closest, double tMax, boolean anyHit) {
+		if (surfaces.length == 0)
+			return false;
+		Point o = ray.source();
+		Vec d = ray.direction();
+		double invDx = ray.invDx(), invDy = ray.invDy(), invDz = ray.invDz();
+		double tEnter = bounds.intersect(ray, tMax);
+		if (tEnter == Double.POSITIVE_INFINITY)
+			return false;
+		tEnter = Math.max(tEnter, 0);
+
+		int ix = cellIndex(o.x + tEnter * d.x, bounds.minX, cellX, nx);
+		int iy = cellIndex(o.y + tEnter * d.y, bounds.minY, cellY, ny);
+		int iz = cellIndex(o.z + tEnter * d.z, bounds.minZ, cellZ, nz);
+
+		// Per axis: the step direction, the distance to the next cell boundary and the
+		// distance between two consecutive boundaries
+		int stepX = d.x > 0 ? 1 : (d.x < 0 ? -1 : 0);
+		int stepY = d.y > 0 ? 1 : (d.y < 0 ? -1 : 0);
+		int stepZ = d.z > 0 ? 1 : (d.z < 0 ? -1 : 0);
+		double tNextX = stepX == 0 ? Double.POSITIVE_INFINITY
+				: (bounds.minX + (ix + (stepX > 0 ? 1 : 0)) * cellX - o.x) * invDx;
+		double tNextY = stepY == 0 ? Double.POSITIVE_INFINITY
+				: (bounds.minY + (iy + (stepY > 0 ? 1 : 0)) * cellY - o.y) * invDy;
+		double tNextZ = stepZ == 0 ? Double.POSITIVE_INFINITY
+				: (bounds.minZ + (iz + (stepZ > 0 ? 1 : 0)) * cellZ - o.z) * invDz;
+		double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : cellX * Math.abs(invDx);
+		double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : cellY * Math.abs(invDy);
+		double tDeltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : cellZ * Math.abs(invDz);
+
+		double tCellEnter = tEnter;
+		while (tCellEnter < tMax) {
+			int c = ix + nx * (iy + ny * iz);
+			double tCellExit = Math.min(tNextX, Math.min(tNextY, tNextZ));
+
+			if (subGrids != null && subGrids[c] != null) {
+				if (subGrids[c].traverse(ray, closest, tMax, anyHit))
+					return true;
+			} else {
+				for (int k = cellStart[c]; k < cellStart[c + 1]; ++k) {
+					int item = cellItems[k];
+					if (anyHit) {
+						if (surfaces[item].intersects(ray, tMax)) {
+							if (closest != null)
+								closest.index = item;
+							return true;
+						}
+					} else {
+						double t = surfaces[item].distance(ray, closest.t);
+						if (t != Double.POSITIVE_INFINITY)
+							closest.offer(t, item);
+					}
+				}
+			}
+
+			// A hit inside the current cell can't be beaten by the cells behind it
+			if (!anyHit && closest.index >= 0 && closest.t <= tCellExit)
+				return false;
+
+			if (tNextX <= tNextY && tNextX <= tNextZ) {
+				ix += stepX;
+				if (ix < 0 || ix >= nx)
+					break;
+				tNextX += tDeltaX;
+			} else if (tNextY <= tNextZ) {
+				iy += stepY;
+				if (iy < 0 || iy >= ny)
+					break;
+				tNextY += tDeltaY;
+			} else {
+				iz += stepZ;
+				if (iz < 0 || iz >= nz)
+					break;
+				tNextZ += tDeltaZ;
+			}
+			tCellEnter = tCellExit;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "uniform grid of " + nx + "x" + ny + "x" + nz + " cells over " + surfaces.length + " surfaces"
+				+ (subGrids == null ? "" : " with " + numSubGrids + " sub-grids");
+	}
+}
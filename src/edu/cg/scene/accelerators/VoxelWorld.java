@@ -0,0 +1,493 @@
+package edu.cg.scene.accelerators;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.objects.AxisAlignedBox;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * A sparse voxel occupancy structure for unit boxes that lie on the integer
+ * lattice. The world is split into bricks of 4x4x4 voxels. Only occupied bricks
+ * are stored, in a hash table keyed by their position: a 64 bit occupancy mask
+ * and the surface (material) index of each of their occupied voxels. Rays walk
+ * the bricks with a DDA and only step voxel by voxel inside occupied bricks, so
+ * both memory and intersection cost scale with the occupied space rather than
+ * with the volume the boxes span.
+ *
+ * Hits are found with the same slab test as AxisAlignedBox and built by the box
+ * itself, so voxelizing a scene doesn't change the rendered image.
+ */
+public class VoxelWorld implements Accelerator {
+	// Below this many lattice boxes, voxelization isn't worth it
+	private static final int MIN_VOXELS = 32;
+	private static final int BRICK_SIZE = 4;
+	private static final int MAX_BRICKS = 1 << 24;
+	// How far from a lattice plane a hitting point is taken to be on it, when
+	// looking for the other voxels it touches
+	private static final double TIE_EPSILON = 1e-6;
+
+	// The surfaces of the voxels, in the order they appeared in the scene
+	private final Surface[] palette;
+	// The lattice coordinates of the corner of voxel (0, 0, 0)
+	private final int originX, originY, originZ;
+	private final int bricksX, bricksY, bricksZ;
+	private final BoundingBox bounds;
+	// An open addressing hash table of the occupied bricks: the position of a brick
+	// (see brickKey) at even indices and its index in the brick arrays after it
+	private final int[] brickTable;
+	private final int tableMask;
+	private final long[] brickMasks;
+	// The index in voxelSurfaces of the first occupied voxel of each brick
+	private final int[] brickStarts;
+	// The palette index of each occupied voxel, brick by brick, in the order of
+	// the bits of the brick mask
+	private final int[] voxelSurfaces;
+	private final int numBricks;
+
+	/**
+	 * Moves the surfaces that are unit boxes on the integer lattice into a voxel
+	 * world.
+	 *
+	 * @param surfaces  - the bounded surfaces of the scene
+	 * @param remaining - receives the surfaces that were not voxelized
+	 * @return the voxel world, or null if there are too few lattice boxes or they
+	 *         are spread too far apart (in which case all the surfaces are added to
+	 *         remaining).
+	 */
+	public static VoxelWorld voxelize(List<Surface> surfaces, List<Surface> remaining) {
+		List<Surface> voxels = new ArrayList<>();
+		BoundingBox extent = BoundingBox.empty();
+		for (Surface surface : surfaces) {
+			if (isLatticeBox(surface)) {
+				voxels.add(surface);
+				extent = extent.union(surface.bounds());
+			}
+		}
+		if (voxels.size() < MIN_VOXELS || numBricks(extent) > MAX_BRICKS) {
+			remaining.addAll(surfaces);
+			return null;
+		}
+		VoxelWorld world = new VoxelWorld(voxels, remaining);
+		for (Surface surface : surfaces) {
+			if (!isLatticeBox(surface))
+				remaining.add(surface);
+		}
+		return world;
+	}
+
+	private static long numBricks(BoundingBox extent) {
+		long x = (long) extent.extent(0) / BRICK_SIZE + 1;
+		long y = (long) extent.extent(1) / BRICK_SIZE + 1;
+		long z = (long) extent.extent(2) / BRICK_SIZE + 1;
+		return x * y * z;
+	}
+
+	private static boolean isLatticeBox(Surface surface) {
+		if (!(surface.getShape() instanceof AxisAlignedBox))
+			return false;
+		BoundingBox b = surface.bounds();
+		return isLatticeCoordinate(b.minX) & isLatticeCoordinate(b.minY) & isLatticeCoordinate(b.minZ)
+				& b.maxX - b.minX == 1 & b.maxY - b.minY == 1 & b.maxZ - b.minZ == 1;
+	}
+
+	private static boolean isLatticeCoordinate(double v) {
+		return v == Math.rint(v) && Math.abs(v) < (1 << 20);
+	}
+
+	/**
+	 * Builds the world. Two boxes can't share a voxel, so a box whose voxel is
+	 * already taken is added to duplicates.
+	 */
+	private VoxelWorld(List<Surface> voxels, List<Surface> duplicates) {
+		int n = voxels.size();
+		int[] xs = new int[n], ys = new int[n], zs = new int[n];
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+		for (int i = 0; i < n; ++i) {
+			BoundingBox b = voxels.get(i).bounds();
+			xs[i] = (int) b.minX;
+			ys[i] = (int) b.minY;
+			zs[i] = (int) b.minZ;
+			minX = Math.min(minX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			minZ = Math.min(minZ, zs[i]);
+			maxX = Math.max(maxX, xs[i]);
+			maxY = Math.max(maxY, ys[i]);
+			maxZ = Math.max(maxZ, zs[i]);
+		}
+		originX = minX;
+		originY = minY;
+		originZ = minZ;
+		bricksX = (maxX - minX) / BRICK_SIZE + 1;
+		bricksY = (maxY - minY) / BRICK_SIZE + 1;
+		bricksZ = (maxZ - minZ) / BRICK_SIZE + 1;
+		bounds = new BoundingBox(originX, originY, originZ, originX + bricksX * BRICK_SIZE,
+				originY + bricksY * BRICK_SIZE, originZ + bricksZ * BRICK_SIZE);
+
+		// Finds the brick of each box and the voxels that are taken twice
+		Map<Integer, Integer> brickIndices = new HashMap<>();
+		int[] boxBricks = new int[n];
+		long[] masks = new long[16];
+		List<Surface> palette = new ArrayList<>();
+		for (int i = 0; i < n; ++i) {
+			int x = xs[i] - originX, y = ys[i] - originY, z = zs[i] - originZ;
+			int b = brickIndices.computeIfAbsent(brickKey(x / BRICK_SIZE, y / BRICK_SIZE, z / BRICK_SIZE), key -> brickIndices.size());
+			if (b == masks.length)
+				masks = Arrays.copyOf(masks, 2 * b);
+			long bit = 1L << voxelBit(x, y, z);
+			if ((masks[b] & bit) != 0) {
+				duplicates.add(voxels.get(i));
+				boxBricks[i] = -1;
+				continue;
+			}
+			masks[b] |= bit;
+			boxBricks[i] = b;
+			palette.add(voxels.get(i));
+		}
+		numBricks = brickIndices.size();
+		brickMasks = Arrays.copyOf(masks, numBricks);
+		this.palette = palette.toArray(new Surface[palette.size()]);
+
+		brickStarts = new int[numBricks];
+		for (int b = 1; b < numBricks; ++b)
+			brickStarts[b] = brickStarts[b - 1] + Long.bitCount(brickMasks[b - 1]);
+		voxelSurfaces = new int[this.palette.length];
+		int surface = 0;
+		for (int i = 0; i < n; ++i) {
+			if (boxBricks[i] < 0)
+				continue;
+			int x = xs[i] - originX, y = ys[i] - originY, z = zs[i] - originZ;
+			voxelSurfaces[voxelIndex(boxBricks[i], voxelBit(x, y, z))] = surface++;
+		}
+
+		// The table is at most half full, so probes are short
+		int capacity = Integer.highestOneBit(Math.max(1, numBricks)) * 4;
+		brickTable = new int[2 * capacity];
+		tableMask = capacity - 1;
+		Arrays.fill(brickTable, -1);
+		for (Map.Entry<Integer, Integer> entry : brickIndices.entrySet()) {
+			int slot = hash(entry.getKey()) & tableMask;
+			while (brickTable[2 * slot] >= 0)
+				slot = (slot + 1) & tableMask;
+			brickTable[2 * slot] = entry.getKey();
+			brickTable[2 * slot + 1] = entry.getValue();
+		}
+	}
+
+	// The position of the brick at brick coordinates (bx, by, bz), as a number below bricksX * bricksY * bricksZ
+	private int brickKey(int bx, int by, int bz) {
+		return bx + bricksX * (by + bricksY * bz);
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the index of the brick at brick coordinates (bx, by, bz) in the brick
+	 *         arrays, or -1 if it is empty.
+	 */
+	private int brickAt(int bx, int by, int bz) {
+		int key = brickKey(bx, by, bz);
+		for (int slot = hash(key) & tableMask;; slot = (slot + 1) & tableMask) {
+			int k = brickTable[2 * slot];
+			if (k == key)
+				return brickTable[2 * slot + 1];
+			if (k < 0)
+				return -1;
+		}
+	}
+
+	// The index in voxelSurfaces of the voxel of brick b at a bit of its mask
+	private int voxelIndex(int b, int bit) {
+		return brickStarts[b] + Long.bitCount(brickMasks[b] & ((1L << bit) - 1));
+	}
+
+	private static int voxelBit(int x, int y, int z) {
+		return (x % BRICK_SIZE) | (y % BRICK_SIZE) << 2 | (z % BRICK_SIZE) << 4;
+	}
+
+	public int numVoxels() {
+		return palette.length;
+	}
+
+	// The closest voxel hit found so far during a traversal
+	private static class Closest {
+		double t = Double.POSITIVE_INFINITY;
+		int surface = -1;
+
+		Closest reset() {
+			t = Double.POSITIVE_INFINITY;
+			surface = -1;
+			return this;
+		}
+	}
+
+	// The closest hit of the query of each thread, so a query doesn't allocate one
+	private static final ThreadLocal<Closest> CLOSEST = ThreadLocal.withInitial(Closest::new);
+
+	@Override
+	public Hit closestHit(Ray ray) {
+		Closest closest = CLOSEST.get().reset();
+		if (!traverse(ray, closest, ray.tMax(), false))
+			return null;
+		breakTies(ray, closest);
+		ray.shrink(closest.t);
+		// The box builds the hit, so voxelized boxes shade exactly like the others
+		return palette[closest.surface].hitAt(ray, closest.t);
+	}
+
+	/**
+	 * A ray that enters the voxels through an edge or a corner of the lattice hits
+	 * several of them at the same distance, but the DDA only visits one. The
+	 * voxels around the hitting point are tested again, so that the one that
+	 * appears first in the scene wins, like in the other accelerators.
+	 */
+	private void breakTies(Ray ray, Closest closest) {
+		// The hitting point, ray.add(closest.t)
+		Point o = ray.source();
+		Vec d = ray.direction();
+		double px = o.x + closest.t * d.x, py = o.y + closest.t * d.y, pz = o.z + closest.t * d.z;
+		int x0 = (int) Math.floor(px - TIE_EPSILON), x1 = (int) Math.floor(px + TIE_EPSILON);
+		int y0 = (int) Math.floor(py - TIE_EPSILON), y1 = (int) Math.floor(py + TIE_EPSILON);
+		int z0 = (int) Math.floor(pz - TIE_EPSILON), z1 = (int) Math.floor(pz + TIE_EPSILON);
+		for (int z = z0; z <= z1; ++z) {
+			for (int y = y0; y <= y1; ++y) {
+				for (int x = x0; x <= x1; ++x) {
+					int surface = surfaceAt(x, y, z);
+					if (surface >= 0 && surface != closest.surface)
+						intersectVoxel(ray, x, y, z, closest, surface);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the palette index of the voxel with corner (x, y, z) on the lattice,
+	 *         or -1 if it is empty.
+	 */
+	private int surfaceAt(int x, int y, int z) {
+		x -= originX;
+		y -= originY;
+		z -= originZ;
+		if (x < 0 || y < 0 || z < 0 || x >= bricksX * BRICK_SIZE || y >= bricksY * BRICK_SIZE
+				|| z >= bricksZ * BRICK_SIZE)
+			return -1;
+		int b = brickAt(x / BRICK_SIZE, y / BRICK_SIZE, z / BRICK_SIZE);
+		int bit = voxelBit(x, y, z);
+		if (b < 0 || (brickMasks[b] & (1L << bit)) == 0)
+			return -1;
+		return voxelSurfaces[voxelIndex(b, bit)];
+	}
+
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		return traverse(ray, null, tMax, true);
+	}
+
+	@Override
+	public Surface occluder(Ray ray, double tMax) {
+		Closest blocker = CLOSEST.get().reset();
+		return traverse(ray, blocker, tMax, true) ? palette[blocker.surface] : null;
+	}
+
+	/**
+	 * Walks the occupied bricks pierced by the ray and the voxels inside them in
+	 * front to back order.
+	 *
+	 * @return true if a voxel was hit (before tMax).
+	 */
+	private boolean traverse(Ray ray, Closest closest, double tMax, boolean anyHit) {
+		Point o = ray.source();
+		Vec d = ray.direction();
+		double invDx = ray.invDx(), invDy = ray.invDy(), invDz = ray.invDz();
+		double tStart = bounds.intersect(ray, tMax);
+		if (tStart == Double.POSITIVE_INFINITY)
+			return false;
+		tStart = Math.max(tStart, 0);
+
+		int stepX = d.x > 0 ? 1 : (d.x < 0 ? -1 : 0);
+		int stepY = d.y > 0 ? 1 : (d.y < 0 ? -1 : 0);
+		int stepZ = d.z > 0 ? 1 : (d.z < 0 ? -1 : 0);
+
+		// Brick level DDA
+		int bx = clamp((int) Math.floor((o.x + tStart * d.x - originX) / BRICK_SIZE), bricksX);
+		int by = clamp((int) Math.floor((o.y + tStart * d.y - originY) / BRICK_SIZE), bricksY);
+		int bz = clamp((int) Math.floor((o.z + tStart * d.z - originZ) / BRICK_SIZE), bricksZ);
+		double tNextX = nextBoundary(o.x, invDx, stepX, originX + bx * BRICK_SIZE, BRICK_SIZE);
+		double tNextY = nextBoundary(o.y, invDy, stepY, originY + by * BRICK_SIZE, BRICK_SIZE);
+		double tNextZ = nextBoundary(o.z, invDz, stepZ, originZ + bz * BRICK_SIZE, BRICK_SIZE);
+		double tDeltaX = BRICK_SIZE * Math.abs(invDx);
+		double tDeltaY = BRICK_SIZE * Math.abs(invDy);
+		double tDeltaZ = BRICK_SIZE * Math.abs(invDz);
+
+		double tBrickEnter = tStart;
+		while (tBrickEnter < tMax) {
+			double tBrickExit = Math.min(tNextX, Math.min(tNextY, tNextZ));
+			int b = brickAt(bx, by, bz);
+			if (b >= 0 && traverseBrick(ray, b, bx, by, bz, Math.max(tBrickEnter, tStart), closest, tMax, anyHit)
+					&& anyHit)
+				return true;
+			// A hit inside the current brick can't be beaten by the bricks behind it
+			if (!anyHit && closest.t < tBrickExit)
+				break;
+
+			if (tNextX <= tNextY && tNextX <= tNextZ) {
+				bx += stepX;
+				if (bx < 0 || bx >= bricksX)
+					break;
+				tNextX += tDeltaX;
+			} else if (tNextY <= tNextZ) {
+				by += stepY;
+				if (by < 0 || by >= bricksY)
+					break;
+				tNextY += tDeltaY;
+			} else {
+				bz += stepZ;
+				if (bz < 0 || bz >= bricksZ)
+					break;
+				tNextZ += tDeltaZ;
+			}
+			tBrickEnter = tBrickExit;
+		}
+		return closest != null && closest.surface >= 0;
+	}
+
+	/**
+	 * Voxel level DDA inside an occupied brick, starting at distance tEnter.
+	 */
+	private boolean traverseBrick(Ray ray, int b, int bx, int by, int bz, double tEnter, Closest closest,
+			double tMax, boolean anyHit) {
+		long mask = brickMasks[b];
+		Point o = ray.source();
+		Vec d = ray.direction();
+		double invDx = ray.invDx(), invDy = ray.invDy(), invDz = ray.invDz();
+		int stepX = d.x > 0 ? 1 : (d.x < 0 ? -1 : 0);
+		int stepY = d.y > 0 ? 1 : (d.y < 0 ? -1 : 0);
+		int stepZ = d.z > 0 ? 1 : (d.z < 0 ? -1 : 0);
+
+		int x0 = bx * BRICK_SIZE, y0 = by * BRICK_SIZE, z0 = bz * BRICK_SIZE;
+		int vx = x0 + clamp((int) Math.floor(o.x + tEnter * d.x - originX) - x0, BRICK_SIZE);
+		int vy = y0 + clamp((int) Math.floor(o.y + tEnter * d.y - originY) - y0, BRICK_SIZE);
+		int vz = z0 + clamp((int) Math.floor(o.z + tEnter * d.z - originZ) - z0, BRICK_SIZE);
+		double tNextX = nextBoundary(o.x, invDx, stepX, originX + vx, 1);
+		double tNextY = nextBoundary(o.y, invDy, stepY, originY + vy, 1);
+		double tNextZ = nextBoundary(o.z, invDz, stepZ, originZ + vz, 1);
+		double tDeltaX = Math.abs(invDx), tDeltaY = Math.abs(invDy), tDeltaZ = Math.abs(invDz);
+
+		boolean found = false;
+		double tVoxelEnter = tEnter;
+		while (tVoxelEnter < tMax) {
+			double tVoxelExit = Math.min(tNextX, Math.min(tNextY, tNextZ));
+			int bit = voxelBit(vx, vy, vz);
+			if ((mask & (1L << bit)) != 0) {
+				int surface = voxelSurfaces[voxelIndex(b, bit)];
+				if (anyHit) {
+					if (intersectVoxel(ray, originX + vx, originY + vy, originZ + vz, null, surface) < tMax) {
+						if (closest != null)
+							closest.surface = surface;
+						return true;
+					}
+				} else if (intersectVoxel(ray, originX + vx, originY + vy, originZ + vz, closest,
+						surface) != Double.POSITIVE_INFINITY) {
+					found = true;
+				}
+			}
+			// Voxels entered exactly at the closest distance are still visited, so that
+			// ties are broken by the scene order of the surfaces
+			if (!anyHit && closest.t < tVoxelExit)
+				break;
+
+			if (tNextX <= tNextY && tNextX <= tNextZ) {
+				vx += stepX;
+				if (vx < x0 || vx >= x0 + BRICK_SIZE)
+					break;
+				tNextX += tDeltaX;
+			} else if (tNextY <= tNextZ) {
+				vy += stepY;
+				if (vy < y0 || vy >= y0 + BRICK_SIZE)
+					break;
+				tNextY += tDeltaY;
+			} else {
+				vz += stepZ;
+				if (vz < z0 || vz >= z0 + BRICK_SIZE)
+					break;
+				tNextZ += tDeltaZ;
+			}
+			tVoxelEnter = tVoxelExit;
+		}
+		return found;
+	}
+
+	/**
+	 * The slab test of AxisAlignedBox, applied to the unit voxel with the given
+	 * corner. A ray that starts inside the voxel doesn't hit it.
+	 *
+	 * @param closest - if not null, updated when the voxel is hit closer than (or
+	 *                as close as, but with a smaller surface index) its current
+	 *                value
+	 * @return the distance to the entry point or Double.POSITIVE_INFINITY.
+	 */
+	private static double intersectVoxel(Ray ray, double minX, double minY, double minZ, Closest closest,
+			int surface) {
+		Point o = ray.source();
+		Vec d = ray.direction();
+		double tNear = Integer.MIN_VALUE;
+		double tFar = Integer.MAX_VALUE;
+		for (int a = 0; a < 3; ++a) {
+			double oa = a == 0 ? o.x : (a == 1 ? o.y : o.z);
+			double da = a == 0 ? d.x : (a == 1 ? d.y : d.z);
+			double min = a == 0 ? minX : (a == 1 ? minY : minZ);
+			double max = min + 1;
+			if (da == 0 && (oa < min || oa > max))
+				return Double.POSITIVE_INFINITY;
+			double t1 = (min - oa) / da;
+			double t2 = (max - oa) / da;
+			if (t1 > t2) {
+				double temp = t1;
+				t1 = t2;
+				t2 = temp;
+			}
+			if (t1 > tNear)
+				tNear = t1;
+			if (t2 < tFar)
+				tFar = t2;
+			if (tNear > tFar || tFar < Ops.epsilon)
+				return Double.POSITIVE_INFINITY;
+		}
+		if (tNear < Ops.epsilon)
+			return Double.POSITIVE_INFINITY;
+		if (closest != null && (tNear < closest.t || (tNear == closest.t && surface < closest.surface))) {
+			closest.t = tNear;
+			closest.surface = surface;
+		}
+		return tNear;
+	}
+
+	private static double nextBoundary(double o, double invD, int step, double cellMin, double cellSize) {
+		if (step == 0)
+			return Double.POSITIVE_INFINITY;
+		return (cellMin + (step > 0 ? cellSize : 0) - o) * invD;
+	}
+
+	private static int clamp(int i, int n) {
+		return i < 0 ? 0 : (i >= n ? n - 1 : i);
+	}
+
+	@Override
+	public String toString() {
+		return "voxel world of " + palette.length + " voxels in " + numBricks + " of " + (long) bricksX * bricksY * bricksZ
+				+ " bricks";
+	}
+}
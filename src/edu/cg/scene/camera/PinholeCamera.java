@@ -1,9 +1,9 @@
 package edu.cg.scene.camera;
 
-import edu.cg.UnimplementedMethodException;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Vec;
+import edu.cg.scene.samplers.Sampler;
 
 public class PinholeCamera {
 	private Point mCameraPosition;
@@ -13,6 +13,13 @@ public class PinholeCamera {
 	private int mHeight;
 	private int mWidth;
 	private double mViewPlainWidth;
+
+	// The orthonormal basis of the image plain, its center and the size of a
+	// pixel, set by initResolution so the rays of the pixels are a few
+	// multiply-adds each
+	private transient Vec vRight, vUpHat;
+	private transient Point center;
+	private transient double pixelSize, halfWidth, halfHeight;
 	
 	/**
 	 * Initializes a pinhole camera model with default resolution 200X200 (RxXRy)
@@ -27,24 +34,16 @@ public class PinholeCamera {
 	 * 
 	 */
 	public PinholeCamera(Point cameraPosition, Vec towardsVec, Vec upVec, double distanceToPlain) {
-		initResolution(200, 200, 2);
 		this.mCameraPosition = cameraPosition;
 		this.mTowardsVec = towardsVec;
 		this.mUpVec = upVec;
 		this.mDistanceToPlain = distanceToPlain;
-//		
-//		initResolution(200, 200, 2);
-//		this.p0 = cameraPosition;
-//		this.f = distanceToPlain;
-//		this.p1 = Ops.add(p0, f, towardsVec.normalize());
-//		this.rightVec = Ops.cross(towardsVec.normalize(), upVec.normalize()).normalize();
-//		this.upVec = Ops.cross(this.rightVec, towardsVec.normalize()).normalize();
-	
-		
+		initResolution(200, 200, 2);
 	}
 
 	/**
-	 * Initializes the resolution and width of the image.
+	 * Initializes the resolution and width of the image, and computes the basis
+	 * of the image plain. Should be called again after the camera is changed.
 	 * 
 	 * @param height         - the number of pixels in the y direction.
 	 * @param width          - the number of pixels in the x direction.
@@ -54,6 +53,14 @@ public class PinholeCamera {
 		this.mHeight = height;
 		this.mWidth = width;
 		this.mViewPlainWidth = viewPlainWidth;
+
+		Vec vTo = this.mTowardsVec.normalize();
+		this.vRight = Ops.cross(vTo.normalize(), this.mUpVec.normalize()).normalize();
+		this.vUpHat = Ops.cross(this.vRight, vTo.normalize()).normalize();
+		this.center = this.mCameraPosition.add(vTo.normalize().mult(this.mDistanceToPlain));
+		this.pixelSize = this.mViewPlainWidth / this.mWidth;
+		this.halfWidth = Math.floor(this.mWidth / 2d);
+		this.halfHeight = Math.floor(this.mHeight / 2d);
 	}
 
 	/**
@@ -65,21 +72,69 @@ public class PinholeCamera {
 	 * @return the middle point of the pixel (x,y) in the model coordinates.
 	 */
 	public Point transform(int x, int y) {
-		double R = this.mViewPlainWidth / this.mWidth;
-		Vec vTo = this.mTowardsVec.normalize();
-		Vec vUp = this.mUpVec;
-		double Rx = this.mWidth;
-		double Ry = this.mHeight;
-		Vec vRight = Ops.cross(vTo.normalize(), vUp.normalize()).normalize();
-//		Vec vRight = (vTo.mult(vUp)).normalize();
-		Vec vUpHat = Ops.cross(vRight, vTo.normalize()).normalize();
-//		Vec vUpHat = (vRight.mult(vTo)).normalize();
-		Point pc = getCameraPosition().add(vTo.normalize().mult(this.mDistanceToPlain));
-		
-		Vec leftSideEquation = vRight.mult(R * (x - Math.floor(Rx / 2d)));
-		Vec rightSideEquation = vUpHat.mult(R * (y - Math.floor(Ry / 2d))).mult(-1);
+		Vec leftSideEquation = vRight.mult(pixelSize * (x - halfWidth));
+		Vec rightSideEquation = vUpHat.mult(pixelSize * (y - halfHeight)).mult(-1);
+
+		return center.add(leftSideEquation).add(rightSideEquation);
+	}
 
-		return pc.add(leftSideEquation).add(rightSideEquation);
+	/**
+	 * Fills the primary rays of a rectangle of pixels, with a ray per sample of
+	 * each pixel. A sample is placed in the pixel by the PIXEL_X and PIXEL_Y
+	 * coordinates of the sampler, so Sampler.PIXEL_POINT gives the rays through
+	 * the points of transform().
+	 * 
+	 * The image plain points are computed here for all the cameras and then
+	 * turned into rays by project().
+	 * 
+	 * @param x0          - the x index of the top left pixel.
+	 * @param y0          - the y index of the top left pixel.
+	 * @param width       - the number of pixels in the x direction.
+	 * @param height      - the number of pixels in the y direction.
+	 * @param sampler     - places the samples in the pixels.
+	 * @param firstSample - the index of the first sample of each pixel.
+	 * @param samples     - the number of samples of each pixel.
+	 * @param res         - filled with width * height * samples rays.
+	 * @return res.
+	 */
+	public PrimaryRays primaryRays(int x0, int y0, int width, int height, Sampler sampler, int firstSample,
+			int samples, PrimaryRays res) {
+		res.setRectangle(x0, y0, width, height, firstSample, samples);
+		double rx = vRight.x, ry = vRight.y, rz = vRight.z;
+		double ux = vUpHat.x, uy = vUpHat.y, uz = vUpHat.z;
+		int i = 0;
+		for (int y = y0; y < y0 + height; ++y)
+			for (int x = x0; x < x0 + width; ++x)
+				for (int s = firstSample; s < firstSample + samples; ++s, ++i) {
+					// The arithmetic of transform(), so the point of the pixel gives the same point
+					double a = pixelSize * (x + (sampler.get(x, y, s, Sampler.PIXEL_X) - 0.5) - halfWidth);
+					double b = pixelSize * (y + (sampler.get(x, y, s, Sampler.PIXEL_Y) - 0.5) - halfHeight);
+					res.ox[i] = center.x + rx * a + -(ux * b);
+					res.oy[i] = center.y + ry * a + -(uy * b);
+					res.oz[i] = center.z + rz * a + -(uz * b);
+				}
+		project(res);
+		return res;
+	}
+
+	/**
+	 * Turns the image plain points in the sources of the rays into the rays that
+	 * the camera shoots through them. The pinhole shoots all the rays from its
+	 * position; an orthographic or a thin lens camera only needs to override this
+	 * step.
+	 */
+	protected void project(PrimaryRays rays) {
+		double px = mCameraPosition.x, py = mCameraPosition.y, pz = mCameraPosition.z;
+		for (int i = 0; i < rays.size(); ++i) {
+			double dx = rays.ox[i] - px, dy = rays.oy[i] - py, dz = rays.oz[i] - pz;
+			double inv = 1.0 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+			rays.dx[i] = inv * dx;
+			rays.dy[i] = inv * dy;
+			rays.dz[i] = inv * dz;
+			rays.ox[i] = px;
+			rays.oy[i] = py;
+			rays.oz[i] = pz;
+		}
 	}
 
 	/**
@@ -0,0 +1,85 @@
+package edu.cg.scene.camera;
+
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+
+/**
+ * The primary rays of a rectangle of pixels, with a number of samples per
+ * pixel, as filled by PinholeCamera.primaryRays. The sources and directions
+ * are kept in columns. Ray i is sample i % samples of pixel i / samples, and
+ * the pixels are ordered row by row.
+ */
+public class PrimaryRays {
+	public final double[] ox, oy, oz, dx, dy, dz;
+	private int size = 0;
+	// The rectangle of pixels and the samples of each, as given to PinholeCamera.primaryRays
+	private int x0, y0, width, firstSample, samples;
+
+	/**
+	 * @param capacity - the maximal number of rays
+	 */
+	public PrimaryRays(int capacity) {
+		ox = new double[capacity];
+		oy = new double[capacity];
+		oz = new double[capacity];
+		dx = new double[capacity];
+		dy = new double[capacity];
+		dz = new double[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return ox.length;
+	}
+
+	void setRectangle(int x0, int y0, int width, int height, int firstSample, int samples) {
+		int size = width * height * samples;
+		if (size > capacity())
+			throw new IllegalArgumentException("Can't fit " + size + " rays in " + capacity());
+		this.size = size;
+		this.x0 = x0;
+		this.y0 = y0;
+		this.width = width;
+		this.firstSample = firstSample;
+		this.samples = samples;
+	}
+
+	/**
+	 * @return the x index of the pixel of ray i.
+	 */
+	public int pixelX(int i) {
+		return x0 + i / samples % width;
+	}
+
+	/**
+	 * @return the y index of the pixel of ray i.
+	 */
+	public int pixelY(int i) {
+		return y0 + i / samples / width;
+	}
+
+	/**
+	 * @return the index of the sample of ray i in the sequence of its pixel.
+	 */
+	public int sampleIndex(int i) {
+		return firstSample + i % samples;
+	}
+
+	/**
+	 * @return ray i as a Ray.
+	 */
+	public Ray ray(int i) {
+		return new Ray(new Point(ox[i], oy[i], oz[i]), new Vec(dx[i], dy[i], dz[i]));
+	}
+
+	/**
+	 * Same as ray(int), but sets res (see Ray.set) rather than allocating.
+	 */
+	public Ray ray(int i, Ray res) {
+		return res.set(ox[i], oy[i], oz[i], dx[i], dy[i], dz[i]);
+	}
+}
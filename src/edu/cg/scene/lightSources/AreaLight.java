@@ -0,0 +1,40 @@
+package edu.cg.scene.lightSources;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Point;
+
+/**
+ * A light source with an area, which casts soft shadows. It is shaded like a
+ * point light at its center (position), with the same decay factors, and the
+ * scene scales its color by the fraction of the light a point sees, which it
+ * estimates by tracing shadow rays to sample points of the light.
+ */
+public abstract class AreaLight extends PointLight {
+	
+	/**
+	 * @return the distance from the center of the light to its farthest point.
+	 */
+	public abstract double radius();
+	
+	/**
+	 * Returns a point of the light for a shadow ray from a given point. The sample
+	 * coordinates cover the part of the light the point sees uniformly, so
+	 * stratified coordinates give stratified points.
+	 * @param fromPoint - The shaded point
+	 * @param u - The first sample coordinate, in [0, 1)
+	 * @param v - The second sample coordinate, in [0, 1)
+	 * @return a point of the light.
+	 */
+	public abstract Point samplePoint(Point fromPoint, double u, double v);
+	
+	@Override
+	protected double maxIntensityAt(Point point) {
+		// The closest point of the light may be radius() closer than its center
+		return maxIntensity() / attenuation(Math.max(0, point.dist(this.position) - radius()));
+	}
+	
+	@Override
+	public boolean influences(BoundingBox box, double minIntensity) {
+		return maxIntensity() / attenuation(Math.max(0, box.distance(this.position) - radius())) >= minIntensity;
+	}
+}
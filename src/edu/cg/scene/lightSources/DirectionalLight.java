@@ -7,12 +7,21 @@ import edu.cg.scene.objects.Surface;
 
 public class DirectionalLight extends Light {
 	private Vec direction = new Vec(0, -1, -1);
+	// Set by compile()
+	private transient Vec toLight = null;
 
 	public DirectionalLight initDirection(Vec direction) {
 		this.direction = direction;
 		return this;
 	}
 
+	/**
+	 * @return the direction the light travels.
+	 */
+	public Vec getDirection() {
+		return direction;
+	}
+
 	@Override
 	public String toString() {
 		String endl = System.lineSeparator();
@@ -26,17 +35,32 @@ public class DirectionalLight extends Light {
 	}
 
 	@Override
-	public Ray rayToLight(Point fromPoint) {
-		return new Ray(fromPoint, this.direction.neg());
+	public void compile() {
+		toLight = this.direction.neg();
+	}
+
+	@Override
+	public Ray rayToLight(Point fromPoint, Ray res) {
+		return res.set(fromPoint, toLight);
 	}
 
 	@Override
 	public boolean isOccludedBy(Surface surface, Ray rayToLight) {
-		return surface.intersect(rayToLight) != null;
+		return surface.intersects(rayToLight, Double.POSITIVE_INFINITY);
+	}
+
+	@Override
+	public double distanceTo(Point fromPoint) {
+		return Double.POSITIVE_INFINITY;
 	}
 
 	@Override
 	public Vec intensity(Point hittingPoint, Ray rayToLight) {
 		return this.intensity;
 	}
+
+	@Override
+	public Vec intensity(Point hittingPoint, Ray rayToLight, Vec res) {
+		return res.set(this.intensity);
+	}
 }
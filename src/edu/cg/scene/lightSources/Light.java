@@ -1,5 +1,6 @@
 package edu.cg.scene.lightSources;
 
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Ray;
 import edu.cg.algebra.Vec;
@@ -19,12 +20,29 @@ public abstract class Light {
 		return this;
 	}
 	
+	/**
+	 * Precomputes whatever the light derives from its parameters for each shaded
+	 * point, so the render threads only read it. Called by Scene.compile(), which
+	 * every render runs first; a light used outside a render must be compiled
+	 * before it is shaded with.
+	 */
+	public void compile() {
+	}
+	
 	/**
 	 * Constructs a ray originated from the given point to the light.
 	 * @param fromPoint - The initial point of the ray
 	 * @return a ray origniated from 'fromPoint' to the light source.
 	 */
-	public abstract Ray rayToLight(Point fromPoint);
+	public Ray rayToLight(Point fromPoint) {
+		return rayToLight(fromPoint, new Ray());
+	}
+	
+	/**
+	 * Same as rayToLight(Point), but sets res (a ray made by Ray(), see Ray.set)
+	 * rather than allocating.
+	 */
+	public abstract Ray rayToLight(Point fromPoint, Ray res);
 	
 	/**
 	 * Checks if the given surface occludes the light-source. The surface occludes the light source
@@ -35,11 +53,67 @@ public abstract class Light {
 	 */
 	public abstract boolean isOccludedBy(Surface surface, Ray rayToLight);
 	
+	/**
+	 * Returns the distance from the given point to the light source. A surface can only occlude
+	 * the light if the ray to the light hits it before this distance.
+	 * @param fromPoint - The given point
+	 * @return the distance to the light source (infinity for a light source that is infinitely far).
+	 */
+	public abstract double distanceTo(Point fromPoint);
+	
+	/**
+	 * Checks if the light source can illuminate the origin of the given ray at all, regardless of
+	 * the surfaces in the scene.
+	 * @param rayToLight - the ray to the light source
+	 * @return false if the light can't reach the origin of the ray.
+	 */
+	public boolean illuminates(Ray rayToLight) {
+		return true;
+	}
+	
+	/**
+	 * Checks if the light can add at least minIntensity (in the strongest channel)
+	 * to the intensity at a point, regardless of the surfaces in the scene. A light
+	 * that doesn't is culled from the shading of the point.
+	 * @param point - The given point
+	 * @param minIntensity - The smallest intensity that is shaded
+	 * @return false if the intensity of the light at the point is below minIntensity.
+	 */
+	public boolean influences(Point point, double minIntensity) {
+		return maxIntensity() >= minIntensity;
+	}
+	
+	/**
+	 * Checks if the light can add at least minIntensity to the intensity at some
+	 * point of a box. This is a conservative bound of influences(Point, double).
+	 * @param box - The given box
+	 * @param minIntensity - The smallest intensity that is shaded
+	 * @return false if the intensity of the light is below minIntensity in all the box.
+	 */
+	public boolean influences(BoundingBox box, double minIntensity) {
+		return maxIntensity() >= minIntensity;
+	}
+	
+	/**
+	 * @return the strongest channel of the intensity of the light.
+	 */
+	protected double maxIntensity() {
+		return Math.max(intensity.x, Math.max(intensity.y, intensity.z));
+	}
+	
 	/**
 	 * Returns the light intensity at the specified point.
 	 * @param hittingPoint - The given point
 	 * @param rayToLight - A ray to the light source (this is relevant for point-light and spotlight)
 	 * @return A vector representing the light intensity (the r,g and b channels). 
 	 */
-	public abstract Vec intensity(Point hittingPoint, Ray rayToLight);
+	public Vec intensity(Point hittingPoint, Ray rayToLight) {
+		return intensity(hittingPoint, rayToLight, new Vec());
+	}
+	
+	/**
+	 * Same as intensity(Point, Ray), but writes the intensity into res rather than
+	 * allocating.
+	 */
+	public abstract Vec intensity(Point hittingPoint, Ray rayToLight, Vec res);
 }
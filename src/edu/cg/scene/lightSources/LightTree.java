@@ -0,0 +1,164 @@
+package edu.cg.scene.lightSources;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Point;
+
+/**
+ * A binary tree over point lights and spotlights, for choosing a few of many
+ * lights at random with probabilities that follow their contribution. Each node
+ * keeps the bounding sphere of its lights, their total intensity and the smallest decay
+ * factors among them, which bound the intensity the node adds at a point. A
+ * sample goes down from the root, taking a child with a probability that follows
+ * that bound, and a leaf gives the exact intensity of its light at the point.
+ *
+ * The tree is built top-down, splitting the lights at the median of the longest
+ * axis of their bounds, and is immutable once built, so it can be shared by all
+ * rendering threads.
+ */
+public class LightTree {
+	private static class Node {
+		// The center of the bounds of the lights and the distance from it to their corners
+		Point center;
+		double radius;
+		// The sum of the strongest channel of the intensity of the lights
+		double power;
+		// The smallest decay factors of the lights
+		double kq, kl, kc;
+		Node left, right;
+		// leaf data: the index of the light in the lights array of the scene
+		int light = -1;
+
+		boolean isLeaf() {
+			return left == null;
+		}
+	}
+
+	private final PointLight[] lights;
+	private final Node root;
+	private final int size;
+	private int depth = 0;
+
+	/**
+	 * Builds a tree over the point lights and spotlights of a light array.
+	 * @param lights - The light sources; the other kinds of lights are not in the tree
+	 */
+	public LightTree(Light[] lights) {
+		this.lights = new PointLight[lights.length];
+		Integer[] indices = new Integer[lights.length];
+		int n = 0;
+		for(int i = 0; i < lights.length; ++i) {
+			if(lights[i] instanceof PointLight) {
+				this.lights[i] = (PointLight)lights[i];
+				indices[n++] = i;
+			}
+		}
+		size = n;
+		root = n == 0 ? null : build(indices, 0, n, 1);
+	}
+
+	private Node build(Integer[] indices, int start, int end, int level) {
+		depth = Math.max(depth, level);
+		Node node = new Node();
+		BoundingBox bounds = BoundingBox.empty();
+		node.kq = node.kl = node.kc = Double.POSITIVE_INFINITY;
+		for(int i = start; i < end; ++i) {
+			PointLight light = lights[indices[i]];
+			bounds = bounds.union(light.position);
+			node.power += light.maxIntensity();
+			node.kq = Math.min(node.kq, light.kq);
+			node.kl = Math.min(node.kl, light.kl);
+			node.kc = Math.min(node.kc, light.kc);
+		}
+		node.center = bounds.center();
+		node.radius = 0.5 * Math.sqrt(bounds.extent(0) * bounds.extent(0) + bounds.extent(1) * bounds.extent(1)
+				+ bounds.extent(2) * bounds.extent(2));
+		if(end - start == 1) {
+			node.light = indices[start];
+			return node;
+		}
+		int axis = 0;
+		for(int a = 1; a < 3; ++a) {
+			if(bounds.extent(a) > bounds.extent(axis))
+				axis = a;
+		}
+		int splitAxis = axis;
+		Arrays.sort(indices, start, end, Comparator.comparingDouble(i -> coordinate(lights[i].position, splitAxis)));
+		int mid = (start + end) / 2;
+		node.left = build(indices, start, mid, level + 1);
+		node.right = build(indices, mid, end, level + 1);
+		return node;
+	}
+
+	private static double coordinate(Point p, int axis) {
+		return axis == 0 ? p.x : axis == 1 ? p.y : p.z;
+	}
+
+	/**
+	 * @return the number of lights in the tree.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int depth() {
+		return depth;
+	}
+
+	/**
+	 * @return true if the light of the given index in the lights array of the
+	 *         scene is in the tree.
+	 */
+	public boolean contains(int lightIndex) {
+		return lights[lightIndex] != null;
+	}
+
+	/**
+	 * Chooses a light for a point at random. The light is chosen with a
+	 * probability that follows its intensity at the point, so dividing its
+	 * contribution by that probability gives an unbiased estimate of the
+	 * contribution of all the lights of the tree.
+	 * @param point - The shaded point
+	 * @param u - A uniform random number in [0, 1)
+	 * @param pdf - Gets the probability of the chosen light at index 0
+	 * @return the index of the light in the lights array of the scene, or -1 if
+	 *         none of the lights can reach the point.
+	 */
+	public int sample(Point point, double u, double[] pdf) {
+		pdf[0] = 1;
+		Node node = root;
+		if(node == null)
+			return -1;
+		while(!node.isLeaf()) {
+			u = Math.min(u, Math.nextDown(1.0));
+			double left = importance(node.left, point);
+			double right = importance(node.right, point);
+			if(left + right <= 0)
+				return -1;
+			double pLeft = left / (left + right);
+			// u is rescaled into the chosen range, so it stays uniform for the next level
+			if(u < pLeft) {
+				u /= pLeft;
+				pdf[0] *= pLeft;
+				node = node.left;
+			} else {
+				u = (u - pLeft) / (1 - pLeft);
+				pdf[0] *= 1 - pLeft;
+				node = node.right;
+			}
+		}
+		return node.light;
+	}
+
+	// The intensity a node adds at a point, exact for a leaf and estimated for an inner node
+	private double importance(Node node, Point point) {
+		if(node.isLeaf())
+			return lights[node.light].maxIntensityAt(point);
+		// The distance to the center of the node, but not less than its radius, so
+		// that a node around the point isn't taken as a light at the point itself
+		double dist = Math.max(point.dist(node.center), node.radius);
+		return node.power / (node.kq * dist * dist + node.kl * dist + node.kc);
+	}
+}
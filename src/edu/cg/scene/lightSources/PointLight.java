@@ -1,6 +1,6 @@
 package edu.cg.scene.lightSources;
 
-import edu.cg.algebra.Hit;
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Ray;
@@ -46,28 +46,51 @@ public class PointLight extends Light {
 	}
 
 	@Override
-	public Ray rayToLight(Point fromPoint) {
-		Ray toLight = new Ray(fromPoint, this.position);
-		return toLight;
+	public Ray rayToLight(Point fromPoint, Ray res) {
+		return res.set(fromPoint, this.position);
 	}
 
 	@Override
 	public boolean isOccludedBy(Surface surface, Ray rayToLight) {
-		Hit t = surface.intersect(rayToLight);
-		Point source = rayToLight.source();
-		Point pointSource = this.position;
-		if(t == null) {
-			return false;
-		}else {
-			return source.distSqr(pointSource) > source.distSqr(rayToLight.getHittingPoint(t));
-		}
+		return surface.intersects(rayToLight, distanceTo(rayToLight.source()));
 	}
 
 	@Override
-	public Vec intensity(Point hittingPoint, Ray rayToLight) {
+	public double distanceTo(Point fromPoint) {
+		return fromPoint.dist(this.position);
+	}
+
+	@Override
+	public boolean influences(Point point, double minIntensity) {
+		return maxIntensityAt(point) >= minIntensity;
+	}
+
+	/**
+	 * @return the strongest channel of the intensity of the light at a point,
+	 *         regardless of the surfaces in the scene.
+	 */
+	protected double maxIntensityAt(Point point) {
+		return maxIntensity() / attenuation(point.dist(this.position));
+	}
+
+	@Override
+	public boolean influences(BoundingBox box, double minIntensity) {
+		// The attenuation grows with the distance, so the closest point of the box gets the most light
+		return maxIntensity() / attenuation(box.distance(this.position)) >= minIntensity;
+	}
+
+	/**
+	 * @return the factor the intensity is divided by at a distance from the light.
+	 */
+	protected double attenuation(double dist) {
+		return kq * dist * dist + kl * dist + kc;
+	}
+
+	@Override
+	public Vec intensity(Point hittingPoint, Ray rayToLight, Vec res) {
 		double dist = Ops.dist(this.position, hittingPoint);
 		double fatt = (kq * Math.pow(dist, 2)) + (kl * dist) + kc;		
-		return this.intensity.mult(1 / fatt);
+		return Ops.mult(1 / fatt, this.intensity, res);
 	}
 
 
@@ -0,0 +1,79 @@
+package edu.cg.scene.lightSources;
+
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * A rectangle centered at position, with sides edge1 and edge2. It only lights
+ * the half space its normal (edge1 x edge2) points to.
+ */
+public class RectangleLight extends AreaLight {
+	private Vec edge1 = new Vec(1, 0, 0);
+	private Vec edge2 = new Vec(0, 1, 0);
+	// Set by compile(): the unit normal of the rectangle
+	private transient Vec normal = null;
+	
+	@Override
+	public String toString() {
+		String endl = System.lineSeparator();
+		return "Rectangle Light:" + endl + description() +
+				"Edges: " + edge1 + ", " + edge2 + endl;
+	}
+	
+	@Override
+	public RectangleLight initIntensity(Vec intensity) {
+		return (RectangleLight)super.initIntensity(intensity);
+	}
+	
+	@Override
+	public RectangleLight initPosition(Point position) {
+		return (RectangleLight)super.initPosition(position);
+	}
+	
+	@Override
+	public RectangleLight initDecayFactors(double q, double l, double c) {
+		return (RectangleLight)super.initDecayFactors(q, l, c);
+	}
+	
+	public RectangleLight initEdges(Vec edge1, Vec edge2) {
+		this.edge1 = edge1;
+		this.edge2 = edge2;
+		return this;
+	}
+	
+	@Override
+	public void compile() {
+		normal = edge1.cross(edge2).normalize();
+	}
+	
+	@Override
+	public boolean isOccludedBy(Surface surface, Ray rayToLight) {
+		return !illuminates(rayToLight) || super.isOccludedBy(surface, rayToLight);
+	}
+	
+	@Override
+	public boolean illuminates(Ray rayToLight) {
+		// The center of the rectangle is in front of the point, along -normal
+		return -rayToLight.direction().dot(normal) >= Ops.epsilon;
+	}
+	
+	@Override
+	protected double maxIntensityAt(Point point) {
+		// A point behind the plane of the rectangle gets no light
+		return point.sub(this.position).dot(normal) <= 0 ? 0 : super.maxIntensityAt(point);
+	}
+	
+	@Override
+	public double radius() {
+		// Half the longer diagonal, in case the edges aren't perpendicular
+		return 0.5 * Math.max(edge1.add(edge2).norm(), edge1.add(edge2.neg()).norm());
+	}
+	
+	@Override
+	public Point samplePoint(Point fromPoint, double u, double v) {
+		return position.add(u - 0.5, edge1).add(v - 0.5, edge2);
+	}
+}
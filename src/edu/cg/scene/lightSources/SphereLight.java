@@ -0,0 +1,52 @@
+package edu.cg.scene.lightSources;
+
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Vec;
+
+public class SphereLight extends AreaLight {
+	private double radius = 1;
+	
+	@Override
+	public String toString() {
+		String endl = System.lineSeparator();
+		return "Sphere Light:" + endl + description() +
+				"Radius: " + radius + endl;
+	}
+	
+	@Override
+	public SphereLight initIntensity(Vec intensity) {
+		return (SphereLight)super.initIntensity(intensity);
+	}
+	
+	@Override
+	public SphereLight initPosition(Point position) {
+		return (SphereLight)super.initPosition(position);
+	}
+	
+	@Override
+	public SphereLight initDecayFactors(double q, double l, double c) {
+		return (SphereLight)super.initDecayFactors(q, l, c);
+	}
+	
+	public SphereLight initRadius(double radius) {
+		this.radius = radius;
+		return this;
+	}
+	
+	@Override
+	public double radius() {
+		return radius;
+	}
+	
+	@Override
+	public Point samplePoint(Point fromPoint, double u, double v) {
+		// A point of the disk the sphere shows the shaded point, uniform in its area
+		Vec w = this.position.sub(fromPoint).normalize();
+		Vec a = Math.abs(w.x) < 0.5 ? new Vec(1, 0, 0) : new Vec(0, 1, 0);
+		Vec e1 = w.cross(a).normalize();
+		Vec e2 = w.cross(e1);
+		double r = radius * Math.sqrt(u);
+		double phi = 2 * Math.PI * v;
+		return position.add(r * Math.cos(phi), e1).add(r * Math.sin(phi), e2);
+	}
+}
@@ -1,5 +1,6 @@
 package edu.cg.scene.lightSources;
 
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Ray;
@@ -8,6 +9,9 @@ import edu.cg.scene.objects.Surface;
 
 public class Spotlight extends PointLight {
 	private Vec direction;
+	// Set by compile(): the normalized direction and its negation
+	private transient Vec D = null;
+	private transient Vec negD = null;
 	
 	public Spotlight initDirection(Vec direction) {
 		this.direction = direction;
@@ -37,24 +41,79 @@ public class Spotlight extends PointLight {
 		return (Spotlight)super.initDecayFactors(q, l, c);
 	}
 	
+	@Override
+	public void compile() {
+		Vec normalized = this.direction.normalize();
+		negD = normalized.neg();
+		D = normalized;
+	}
+	
 	@Override
 	public boolean isOccludedBy(Surface surface, Ray rayToLight) {
-		Vec L = rayToLight.direction().neg();
-		Vec D = this.direction.normalize();
-		double dotProduct = L.dot(D);
-		if(dotProduct < Ops.epsilon || super.isOccludedBy(surface, rayToLight)) {
-			return true;
-		}
-		return false;
+		return !illuminates(rayToLight) || super.isOccludedBy(surface, rayToLight);
+	}
+	
+	@Override
+	public boolean illuminates(Ray rayToLight) {
+		// The spotlight only lights the half space it is directed to
+		Vec L = rayToLight.direction();
+		// The same products as L.neg().dot(D)
+		double dot = (-1*L.x)*D.x + (-1*L.y)*D.y + (-1*L.z)*D.z;
+		return dot >= Ops.epsilon;
 	}
 	
 	@Override
-	public Vec intensity(Point hittingPoint, Ray rayToLight) {
-		double vDotProduct = this.direction.normalize().neg().dot(rayToLight.direction());
+	public boolean influences(Point point, double minIntensity) {
+		double intensity = maxIntensityAt(point);
+		return intensity > 0 && intensity >= minIntensity;
+	}
+
+	@Override
+	protected double maxIntensityAt(Point point) {
+		double x = point.x - position.x, y = point.y - position.y, z = point.z - position.z;
+		double dist = Math.sqrt(x * x + y * y + z * z);
+		// The cosine of the angle between the direction of the spotlight and the point
+		double cos = (x * D.x + y * D.y + z * D.z) / dist;
+		return cos < Ops.epsilon ? 0 : maxIntensity() * cos / attenuationSqr(dist);
+	}
+
+	/**
+	 * @return the factor intensity(Point, Ray) divides by at a distance from the
+	 *         light, which is the attenuation of a point light squared (so with kc
+	 *         < 1, a point close to the light gets more than the intensity).
+	 */
+	private double attenuationSqr(double dist) {
+		double att = attenuation(dist);
+		return att * att;
+	}
+
+	@Override
+	public boolean influences(BoundingBox box, double minIntensity) {
+		// The cosine at a point of the box is its distance along D over its distance
+		// from the light, which the farthest corner along D and the closest point of
+		// the box bound
+		double along = Double.NEGATIVE_INFINITY;
+		for(int corner = 0; corner < 8; ++corner) {
+			double x = (corner & 1) == 0 ? box.minX : box.maxX;
+			double y = (corner & 2) == 0 ? box.minY : box.maxY;
+			double z = (corner & 4) == 0 ? box.minZ : box.maxZ;
+			along = Math.max(along, (x - position.x) * D.x + (y - position.y) * D.y + (z - position.z) * D.z);
+		}
+		if(along <= 0)
+			return false;
+		double dist = box.distance(this.position);
+		double cos = dist == 0 ? 1 : Math.min(1, along / dist);
+		// The attenuation grows with the distance, so its square is smallest at the closest point too
+		return maxIntensity() * cos / attenuationSqr(dist) >= minIntensity;
+	}
+
+	@Override
+	public Vec intensity(Point hittingPoint, Ray rayToLight, Vec res) {
+		double vDotProduct = negD.dot(rayToLight.direction());
 		double dist = Ops.dist(this.position, hittingPoint);		
 		double fatt = (kq * Math.pow(dist, 2)) + (kl * dist) + kc;	
 		
-		return super.intensity(hittingPoint,rayToLight).mult(vDotProduct / fatt);
+		return Ops.mult(vDotProduct / fatt, super.intensity(hittingPoint, rayToLight, res), res);
 	}
 
 }
@@ -1,6 +1,9 @@
 package edu.cg.scene.objects;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import edu.cg.UnimplementedMethodException;
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Hit;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
@@ -11,7 +14,11 @@ public class AxisAlignedBox extends Shape {
 	private Point minPoint;
 	private Point maxPoint;
 	private String name = "";
-	static private int CURR_IDX;
+	static private final AtomicInteger CURR_IDX = new AtomicInteger();
+	// Set by compile()
+	private transient Point midPoint = null;
+	private transient double halfX, halfY, halfZ;
+	private transient BoundingBox slabs = null;
 
 	/**
 	 * Creates an axis aligned box with a specified minPoint and maxPoint.
@@ -19,8 +26,7 @@ public class AxisAlignedBox extends Shape {
 	public AxisAlignedBox(Point minPoint, Point maxPoint) {
 		this.minPoint = minPoint;
 		this.maxPoint = maxPoint;
-		name = new String("Box " + CURR_IDX);
-		CURR_IDX += 1;
+		name = new String("Box " + CURR_IDX.getAndIncrement());
 		fixBoundryPoints();
 	}
 
@@ -63,103 +69,119 @@ public class AxisAlignedBox extends Shape {
 		return this;
 	}
 
+	public Point getMinPoint() {
+		return minPoint;
+	}
+
+	public Point getMaxPoint() {
+		return maxPoint;
+	}
+
+	@Override
+	public BoundingBox bounds() {
+		return new BoundingBox(minPoint, maxPoint);
+	}
+
 	@Override
 	public Hit intersect(Ray ray) {
-		double tNear = Integer.MIN_VALUE;
-		double tFar = Integer.MAX_VALUE;
-		Point midPoint = new Point((minPoint.x + maxPoint.x) / 2, (minPoint.y +
-				  maxPoint.y) / 2, (minPoint.z + maxPoint.z) / 2);
-		Point origin = ray.source();
-		double x = Math.abs((minPoint.x - maxPoint.x) / 2);
-		double y = Math.abs((minPoint.y - maxPoint.y) / 2);
-		double z = Math.abs((minPoint.z - maxPoint.z) / 2);
-		
-		if(ray.direction().x == 0) {
-			if(origin.x < minPoint.x || origin.x > maxPoint.x) {
-				return null;
-			}
+		double tNear = entryDistance(ray, Double.POSITIVE_INFINITY);
+		if(tNear == Double.POSITIVE_INFINITY) {
+			return null;
 		}
+		return hitAt(ray, tNear);
+	}
+
+	@Override
+	public double distance(Ray ray, double tMax) {
+		return entryDistance(ray, tMax);
+	}
+
+	@Override
+	public void compile() {
+		// A box loaded from a scene file didn't go through the constructor
+		fixBoundryPoints();
+		midPoint = new Point((minPoint.x + maxPoint.x) / 2, (minPoint.y +
+				  maxPoint.y) / 2, (minPoint.z + maxPoint.z) / 2);
+		halfX = Math.abs((minPoint.x - maxPoint.x) / 2);
+		halfY = Math.abs((minPoint.y - maxPoint.y) / 2);
+		halfZ = Math.abs((minPoint.z - maxPoint.z) / 2);
+		slabs = new BoundingBox(minPoint, maxPoint);
+	}
+
+	@Override
+	public Hit hitAt(Ray ray, double tNear) {
+		Point o = ray.source();
+		Vec d = ray.direction();
+		// The offset of the hitting point from the center, scaled to the unit cube,
+		// points along the normal of the face that was hit
+		Vec norm = new Vec((o.x + tNear * d.x - midPoint.x) / halfX, (o.y + tNear * d.y - midPoint.y) / halfY,
+				(o.z + tNear * d.z - midPoint.z) / halfZ);
+		return new Hit(tNear, Ops.normalize(norm, norm));
+	}
+
+	@Override
+	public boolean intersects(Ray ray, double tMax) {
+		double t = entryDistance(ray, tMax);
+		return t < tMax;
+	}
+
+	/**
+	 * Slab test of the ray against the box. The entry distance only grows from
+	 * slab to slab, so the test gives up once it passes tMax.
+	 * 
+	 * The cached sign bits of the ray pick the near and the far plane of each
+	 * slab, and the cached reciprocal direction turns the divisions into
+	 * multiplications. A ray parallel to a slab gets infinite distances, so it
+	 * misses unless its origin lies between the planes; a ray that lies exactly on
+	 * a plane gets NaN, which the comparisons ignore.
+	 * 
+	 * @return the distance to the point where the ray enters the box, or
+	 *         Double.POSITIVE_INFINITY if the ray misses the box, starts inside it
+	 *         or enters it after tMax.
+	 */
+	private double entryDistance(Ray ray, double tMax) {
+		BoundingBox b = slabs;
+		Point o = ray.source();
+		double tNear = Double.NEGATIVE_INFINITY;
+		double tFar = Double.POSITIVE_INFINITY;
 		
-		double t1 = (double)(minPoint.x - origin.x) / (double)(ray.direction().x);
-		double t2 = (double)(maxPoint.x - origin.x) / (double)(ray.direction().x);
-		if(t1 > t2) {
-			double temp = t1;
-			t1 = t2;
-			t2 = temp;
-		}
+		double t1 = ((ray.signX() == 0 ? b.minX : b.maxX) - o.x) * ray.invDx();
+		double t2 = ((ray.signX() == 0 ? b.maxX : b.minX) - o.x) * ray.invDx();
 		if(t1 > tNear) {
 			tNear = t1;
 		}
 		if(t2 < tFar) {
 			tFar = t2;
 		}
-		if(tNear > tFar) {
-			return null;
-		}
-		if(tFar < Ops.epsilon) {
-			return null;
+		if(tNear > tFar || tNear > tMax || tFar < Ops.epsilon) {
+			return Double.POSITIVE_INFINITY;
 		}
 		
-		if(ray.direction().y == 0) {
-			if(origin.y < minPoint.y || origin.y > maxPoint.y) {
-				return null;
-			}
-		}
-		t1 = (double)(minPoint.y - origin.y) / (double)(ray.direction().y);
-		t2 = (double)(maxPoint.y - origin.y) / (double)(ray.direction().y);
-		if(t1 > t2) {
-			double temp = t1;
-			t1 = t2;
-			t2 = temp;
-		}
+		t1 = ((ray.signY() == 0 ? b.minY : b.maxY) - o.y) * ray.invDy();
+		t2 = ((ray.signY() == 0 ? b.maxY : b.minY) - o.y) * ray.invDy();
 		if(t1 > tNear) {
 			tNear = t1;
 		}
 		if(t2 < tFar) {
 			tFar = t2;
 		}
-		if(tNear > tFar) {
-			return null;
-		}
-		if(tFar < Ops.epsilon) {
-			return null;
-		}
-			
-		if(ray.direction().z == 0) {
-			if(origin.z < minPoint.z || origin.z > maxPoint.z) {
-				return null;
-			}
-		}
-		t1 = (double)(minPoint.z - origin.z) / (double)(ray.direction().z);
-		t2 = (double)(maxPoint.z - origin.z) / (double)(ray.direction().z);
-		if(t1 > t2) {
-			double temp = t1;
-			t1 = t2;
-			t2 = temp;
+		if(tNear > tFar || tNear > tMax || tFar < Ops.epsilon) {
+			return Double.POSITIVE_INFINITY;
 		}
+		
+		t1 = ((ray.signZ() == 0 ? b.minZ : b.maxZ) - o.z) * ray.invDz();
+		t2 = ((ray.signZ() == 0 ? b.maxZ : b.minZ) - o.z) * ray.invDz();
 		if(t1 > tNear) {
 			tNear = t1;
 		}
 		if(t2 < tFar) {
 			tFar = t2;
 		}
-		if(tNear > tFar) {
-			return null;
-		}
-		if(tFar < Ops.epsilon) {
-			return null;
+		if(tNear > tFar || tNear > tMax || tFar < Ops.epsilon) {
+			return Double.POSITIVE_INFINITY;
 		}
 		
-		if(tNear < Ops.epsilon) {
-			return null;
-		}
-		Point hittingPoint = Ops.add(origin, tNear, ray.direction());
-		Vec point = Ops.sub(hittingPoint, midPoint);
-		Vec norm = new Vec(point.x / x, point.y / y, point.z / z).normalize();
-		return new Hit(tNear, norm);
+		return tNear < Ops.epsilon ? Double.POSITIVE_INFINITY : tNear;
 	}
 
-
-
-
 }
@@ -1,5 +1,6 @@
 package edu.cg.scene.objects;
 
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Hit;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
@@ -10,7 +11,10 @@ public class Plain extends Shape {
 	//implicit form of a plain: ax + by + cz + d = 0;
 	private double a, b, c, d;
 	
+	// Set by compile()
 	private transient Vec normal = null;
+	private transient Vec negNormal = null;
+	private transient Vec abc = null;
 	
 	public Plain(double a, double b, double c, double d) {
 		this.a = a;
@@ -33,27 +37,56 @@ public class Plain extends Shape {
 		return "Plain: a = " + a + ", b = " + b + ", c = " + c + ", d = " + d + endl;
 	}
 	
-	public synchronized Vec normal() {
-		if(normal == null)
-			normal = new Vec(a, b, c).normalize();
-		return normal;
+	@Override
+	public void compile() {
+		normal = new Vec(a, b, c).normalize();
+		negNormal = normal.neg();
+		abc = new Vec(a, b, c);
+	}
+	
+	/**
+	 * @return the unit normal of the plain, a new vector that is valid before
+	 *         compile() too.
+	 */
+	public Vec normal() {
+		return new Vec(a, b, c).normalize();
 	}
 	
 	
 	public Vec normal(Ray ray) {
-		return ray.direction().dot(normal()) < 0 ? normal() : normal().neg();
+		return ray.direction().dot(normal) < 0 ? normal : negNormal;
 	}
 	
 	public double substitute(Point p) {
-		Vec abc = new Vec(a, b, c);
-		return abc.dot(p.toVec()) + d;
+		return abc.x*p.x + abc.y*p.y + abc.z*p.z + d;
+	}
+	
+	@Override
+	public BoundingBox bounds() {
+		// A plain is unbounded
+		return null;
+	}
+	
+	@Override
+	public boolean intersects(Ray ray, double tMax) {
+		double t = -substitute(ray.source()) / ray.direction().dot(abc);
+		return t > Ops.epsilon & t < Ops.infinity & t < tMax;
 	}
 	
 	@Override
 	public Hit intersect(Ray ray) {
-		Vec abc = new Vec(a, b, c);
-		
+		double t = distance(ray, Double.POSITIVE_INFINITY);
+		return t == Double.POSITIVE_INFINITY ? null : hitAt(ray, t);
+	}
+	
+	@Override
+	public double distance(Ray ray, double tMax) {
 		double t = -substitute(ray.source()) / ray.direction().dot(abc);
-		return t > Ops.epsilon & t < Ops.infinity ? new Hit(t, normal(ray)) : null;
+		return t > Ops.epsilon & t < Ops.infinity & t <= tMax ? t : Double.POSITIVE_INFINITY;
+	}
+	
+	@Override
+	public Hit hitAt(Ray ray, double t) {
+		return new Hit(t, normal(ray));
 	}
 }
@@ -0,0 +1,43 @@
+package edu.cg.scene.objects;
+
+import edu.cg.algebra.Vec;
+
+/**
+ * The terms of the Phong model that a material lights with, so the shading of a
+ * hit only runs those, and doesn't trace shadow rays for a material that only
+ * has an ambient color. Surface.compile(Vec) classifies the material of each
+ * surface.
+ */
+public enum Shading {
+	AMBIENT(false, false), DIFFUSE(true, false), SPECULAR(false, true), PHONG(true, true);
+
+	private final boolean diffuse, specular;
+
+	private Shading(boolean diffuse, boolean specular) {
+		this.diffuse = diffuse;
+		this.specular = specular;
+	}
+
+	public boolean hasDiffuse() {
+		return diffuse;
+	}
+
+	public boolean hasSpecular() {
+		return specular;
+	}
+
+	/**
+	 * @return the shading of a material: a term is dropped when its coefficient
+	 *         is 0 in all the channels.
+	 */
+	public static Shading of(Material material) {
+		boolean diffuse = !isZero(material.Kd), specular = !isZero(material.Ks);
+		if (diffuse)
+			return specular ? PHONG : DIFFUSE;
+		return specular ? SPECULAR : AMBIENT;
+	}
+
+	private static boolean isZero(Vec v) {
+		return v.x == 0 && v.y == 0 && v.z == 0;
+	}
+}
@@ -1,7 +1,66 @@
 package edu.cg.scene.objects;
 
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ray;
 
 public abstract class Shape implements Intersectable {
 	// An abstract class the represents a shape.
 	// You can add abstract methods here.
+
+	/**
+	 * Returns an axis aligned box that bounds the shape.
+	 * 
+	 * @return the bounding box of the shape, or null if the shape is unbounded
+	 *         (e.g. a plain).
+	 */
+	public abstract BoundingBox bounds();
+
+	/**
+	 * Precomputes whatever the intersection routines derive from the parameters of
+	 * the shape, so the render threads only read it. Called by Scene.compile(),
+	 * which every render runs first; a shape intersected outside a render must be
+	 * compiled after it is loaded or changed.
+	 */
+	public void compile() {
+	}
+
+	/**
+	 * Checks if the ray hits the shape at a distance t where epsilon < t < tMax.
+	 * Unlike intersect(Ray), no Hit is created and no normal is computed, so this
+	 * is the cheap query to use for shadow rays.
+	 * 
+	 * @param ray  - the specified ray
+	 * @param tMax - hits at this distance or farther are ignored
+	 * @return true if the ray hits the shape before tMax.
+	 */
+	public abstract boolean intersects(Ray ray, double tMax);
+
+	/**
+	 * Finds the distance to the hit that intersect(Ray) would return, without
+	 * creating it. Accelerators compare the distances of the candidates and call
+	 * hitAt(Ray, double) once, for the closest one.
+	 * 
+	 * The default implementation goes through intersect(Ray). Shapes override it
+	 * to skip the normal and the Hit, and to give up as soon as the hit is known to
+	 * be farther than tMax.
+	 * 
+	 * @param ray  - the specified ray
+	 * @param tMax - hits farther than this are ignored (a hit at tMax isn't, so
+	 *             ties between surfaces can still be broken by the caller)
+	 * @return the distance to the hit, or Double.POSITIVE_INFINITY if there is no
+	 *         hit up to tMax.
+	 */
+	public double distance(Ray ray, double tMax) {
+		Hit hit = intersect(ray);
+		return hit == null || hit.t() > tMax ? Double.POSITIVE_INFINITY : hit.t();
+	}
+
+	/**
+	 * Creates the hit of the ray at a distance returned by distance(Ray, double),
+	 * with its normal and inside flag.
+	 */
+	public Hit hitAt(Ray ray, double t) {
+		return intersect(ray);
+	}
 }
@@ -1,6 +1,7 @@
 package edu.cg.scene.objects;
 
 import edu.cg.UnimplementedMethodException;
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Hit;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
@@ -36,32 +37,78 @@ public class Sphere extends Shape {
 		return this;
 	}
 
+	public Point getCenter() {
+		return center;
+	}
+
+	public double getRadius() {
+		return radius;
+	}
+
+	@Override
+	public BoundingBox bounds() {
+		return new BoundingBox(center.x - radius, center.y - radius, center.z - radius, center.x + radius,
+				center.y + radius, center.z + radius);
+	}
+
+	// The B of the quadratic equation of the distance, 2d.(o - center), without the
+	// vectors ray.direction().mult(2.0).dot(ray.source().sub(this.center)) allocates
+	private double b(Ray ray) {
+		Point o = ray.source();
+		Vec d = ray.direction();
+		return (2.0 * d.x) * (o.x - center.x) + (2.0 * d.y) * (o.y - center.y) + (2.0 * d.z) * (o.z - center.z);
+	}
+
+	@Override
+	public boolean intersects(Ray ray, double tMax) {
+		double B = b(ray);
+		double C = ray.source().distSqr(this.center) - Math.pow(this.radius, 2);
+		double delta = Math.pow(B, 2) - 4 * C;
+		if(delta < 0) {
+			return false;
+		}
+		double sqrtDelta = Math.sqrt(delta);
+		double t0 = (-B + sqrtDelta) / 2.0;
+		double t1 = (-B - sqrtDelta) / 2.0;
+		// Same as intersect(Ray): a ray that starts inside the sphere doesn't hit it
+		return t0 > Ops.epsilon && t1 > Ops.epsilon && Math.min(t0, t1) < tMax;
+	}
+
 	@Override
 	public Hit intersect(Ray ray) {
-		double B = ray.direction().mult(2.0).dot(ray.source().sub(this.center));
+		double t = distance(ray, Double.POSITIVE_INFINITY);
+		return t == Double.POSITIVE_INFINITY ? null : hitAt(ray, t);
+	}
+
+	@Override
+	public double distance(Ray ray, double tMax) {
+		double B = b(ray);
 		double C = ray.source().distSqr(this.center) - Math.pow(this.radius, 2);
 		double delta = Math.pow(B, 2) - 4 * C;
-		double hitTowards;
-		boolean isWithin = false;
-		Vec normalizedHit;
 		if(delta < 0) {
-			return null;
-		} else {
-			double t0 = (-B + Math.sqrt(delta)) / 2.0;
-			double t1 = (-B - Math.sqrt(delta)) / 2.0;
-			
-			if(t0 < Ops.epsilon && t1 < Ops.epsilon) {
-				return null;
-			} 
-			if(t0 > Ops.epsilon && t1 > Ops.epsilon) {
-				hitTowards = Math.min(t0, t1);
-				normalizedHit = ray.add(hitTowards).sub(this.center).normalize();
-				Hit hit = new Hit (hitTowards, isWithin ? normalizedHit.neg() : normalizedHit);
-				hit.setIsWithin(isWithin);
-				return hit;
-			} else {
-				return null;
-			}			
+			return Double.POSITIVE_INFINITY;
+		}
+		double sqrtDelta = Math.sqrt(delta);
+		double t0 = (-B + sqrtDelta) / 2.0;
+		double t1 = (-B - sqrtDelta) / 2.0;
+		// A ray that starts inside the sphere doesn't hit it
+		if(!(t0 > Ops.epsilon && t1 > Ops.epsilon)) {
+			return Double.POSITIVE_INFINITY;
 		}
+		double t = Math.min(t0, t1);
+		return t <= tMax ? t : Double.POSITIVE_INFINITY;
+	}
+
+	@Override
+	public Hit hitAt(Ray ray, double t) {
+		boolean isWithin = false;
+		Point o = ray.source();
+		Vec d = ray.direction();
+		// The hitting point minus the center, normalized
+		Vec normalizedHit = new Vec(o.x + t * d.x - center.x, o.y + t * d.y - center.y, o.z + t * d.z - center.z);
+		Ops.normalize(normalizedHit, normalizedHit);
+		Hit hit = new Hit(t, isWithin ? normalizedHit.neg() : normalizedHit);
+		hit.setIsWithin(isWithin);
+		return hit;
 	}
 }
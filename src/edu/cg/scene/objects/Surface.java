@@ -1,6 +1,7 @@
 package edu.cg.scene.objects;
 
 import edu.cg.UnimplementedMethodException;
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Hit;
 import edu.cg.algebra.Ray;
 import edu.cg.algebra.Vec;
@@ -8,6 +9,9 @@ import edu.cg.algebra.Vec;
 public class Surface implements Intersectable {
 	private Shape shape;
 	private Material material;
+	// Set by compile(Vec)
+	private transient Vec ambientColor = null;
+	private transient Shading shading = null;
 	
 	public Surface(Shape shape, Material material) {
 		this.shape = shape;
@@ -25,6 +29,33 @@ public class Surface implements Intersectable {
 				"Shape:" + endl + shape + endl +
 				"Material: " + endl + material + endl;
 	}
+	/**
+	 * Prepares the surface for rendering: compiles the shape, combines the
+	 * ambient coefficient of the material with the ambient light of the scene and
+	 * classifies the shading of the material.
+	 * 
+	 * @param ambient - the ambient light of the scene
+	 */
+	public void compile(Vec ambient) {
+		shape.compile();
+		ambientColor = Ka().mult(ambient);
+		shading = Shading.of(material);
+	}
+	
+	/**
+	 * @return Ka() * ambient, for the ambient light given to compile(Vec).
+	 */
+	public Vec ambientColor() {
+		return ambientColor;
+	}
+	
+	/**
+	 * @return the terms the material lights with, as of compile(Vec).
+	 */
+	public Shading shading() {
+		return shading;
+	}
+	
 	public Shape getShape(){
 		return shape;
 	}
@@ -37,6 +68,36 @@ public class Surface implements Intersectable {
 		return res;
 	}
 	
+	/**
+	 * See Shape.distance(Ray, double).
+	 */
+	public double distance(Ray ray, double tMax) {
+		return shape.distance(ray, tMax);
+	}
+	
+	/**
+	 * See Shape.hitAt(Ray, double). The hit is bound to this surface.
+	 */
+	public Hit hitAt(Ray ray, double t) {
+		Hit res = shape.hitAt(ray, t);
+		res.setSurface(this);
+		return res;
+	}
+	
+	/**
+	 * Checks if the ray hits the surface before tMax. See Shape.intersects(Ray, double).
+	 */
+	public boolean intersects(Ray ray, double tMax) {
+		return shape.intersects(ray, tMax);
+	}
+	
+	/**
+	 * @return the bounding box of the surface's shape, or null if it is unbounded.
+	 */
+	public BoundingBox bounds() {
+		return shape.bounds();
+	}
+	
 	public Vec Ka() {
 		return material.Ka;
 	}
@@ -0,0 +1,34 @@
+package edu.cg.scene.samplers;
+
+/**
+ * The Halton sequence, with the radical inverse in the i-th prime base along
+ * dimension i. Each pixel shifts the sequence by a random offset per dimension
+ * (modulo 1), so neighboring pixels don't share their sample points.
+ */
+class HaltonSampler implements Sampler {
+	private static final int[] PRIMES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53 };
+
+	@Override
+	public double get(int x, int y, int index, int dimension) {
+		if (dimension >= PRIMES.length)
+			throw new IllegalArgumentException("The Halton sampler has " + PRIMES.length + " dimensions");
+		double value = radicalInverse(PRIMES[dimension], index)
+				+ Hashing.toUnit(Hashing.hash(x, y, dimension));
+		return value >= 1 ? value - 1 : value;
+	}
+
+	@Override
+	public int dimensions() {
+		return PRIMES.length;
+	}
+
+	// Mirrors the digits of index in the base around the radix point
+	private static double radicalInverse(int base, int index) {
+		double inverseBase = 1.0 / base, scale = inverseBase, res = 0;
+		for (int i = index; i > 0; i /= base) {
+			res += (i % base) * scale;
+			scale *= inverseBase;
+		}
+		return res;
+	}
+}
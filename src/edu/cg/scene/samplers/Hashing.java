@@ -0,0 +1,37 @@
+package edu.cg.scene.samplers;
+
+/**
+ * The integer hashes the samplers derive their per pixel randomization from.
+ */
+final class Hashing {
+	private Hashing() {
+	}
+
+	/**
+	 * @return a well mixed hash of the given values.
+	 */
+	static int hash(int a, int b, int c) {
+		return mix(mix(mix(a) ^ b) ^ c);
+	}
+
+	static int hash(int a, int b, int c, int d) {
+		return mix(hash(a, b, c) ^ d);
+	}
+
+	/**
+	 * @return the hash as a number in [0, 1).
+	 */
+	static double toUnit(int hash) {
+		return (hash >>> 8) * 0x1p-24;
+	}
+
+	// The finalizer of MurmurHash3
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,82 @@
+package edu.cg.scene.samplers;
+
+/**
+ * The random numbers the shading draws along a path of a sample of a pixel.
+ * The primary ray draws the coordinates of the sample in dimensions
+ * Sampler.PATH, PATH + 1 and so on, in order. Past the dimensions of the
+ * sampler, and along the reflections and refractions (see branch), the numbers
+ * are hashed from the pixel, the index of the sample, the branch and the
+ * dimension, so the image is still the same every time.
+ *
+ * Each ray has its own path sample, so the numbers of a ray don't depend on the
+ * order its tree is traced in. Only the thread that traces the pixel draws from
+ * it, and a thread may reuse the path sample of a ray it is done with (see
+ * set and branch(int, PathSample)).
+ */
+public class PathSample {
+	private Sampler sampler;
+	private int x, y, index;
+	// 0 for the primary ray, and a hash of the branches from it otherwise
+	private int branch;
+	private int dimension = Sampler.PATH;
+
+	/**
+	 * @param sampler - the sampler of the pixels.
+	 * @param x       - the index of the x direction of the pixel.
+	 * @param y       - the index of the y direction of the pixel.
+	 * @param index   - the index of the sample in the sequence of the pixel.
+	 */
+	public PathSample(Sampler sampler, int x, int y, int index) {
+		set(sampler, x, y, index);
+	}
+
+	/**
+	 * A path sample to be set by set or branch(int, PathSample).
+	 */
+	public PathSample() {
+	}
+
+	/**
+	 * Makes this the path sample new PathSample(sampler, x, y, index) would make.
+	 */
+	public PathSample set(Sampler sampler, int x, int y, int index) {
+		return set(sampler, x, y, index, 0);
+	}
+
+	private PathSample set(Sampler sampler, int x, int y, int index, int branch) {
+		this.sampler = sampler;
+		this.x = x;
+		this.y = y;
+		this.index = index;
+		this.branch = branch;
+		this.dimension = Sampler.PATH;
+		return this;
+	}
+
+	/**
+	 * @param child - tells the rays spawned at a hit apart (e.g. 1 for the
+	 *              reflected ray and 2 for the refracted ray).
+	 * @return the path sample of a ray spawned by the ray of this one.
+	 */
+	public PathSample branch(int child) {
+		return branch(child, new PathSample());
+	}
+
+	/**
+	 * Same as branch(int), but sets res (which may be this) rather than
+	 * allocating.
+	 */
+	public PathSample branch(int child, PathSample res) {
+		return res.set(sampler, x, y, index, Hashing.hash(branch, child, dimension) | 1);
+	}
+
+	/**
+	 * @return the coordinate of the sample in the next dimension, in [0, 1).
+	 */
+	public double next() {
+		int d = dimension++;
+		if (branch == 0 && d < sampler.dimensions())
+			return sampler.get(x, y, index, d);
+		return Hashing.toUnit(Hashing.hash(Hashing.hash(x, y, index), branch, d));
+	}
+}
@@ -0,0 +1,36 @@
+package edu.cg.scene.samplers;
+
+/**
+ * A sequence of sample points per pixel. A sample point has a coordinate in
+ * [0, 1) along each dimension: dimensions PIXEL_X and PIXEL_Y place the sample
+ * in the pixel, and the dimensions from PATH on are drawn by the shading along
+ * the path of the sample (see PathSample), e.g. for a point on an area light.
+ *
+ * A coordinate depends only on the pixel, the index of the sample and the
+ * dimension, so a sampler has no mutable state, can be shared by the render
+ * threads and renders the same image every time.
+ */
+public interface Sampler {
+	int PIXEL_X = 0, PIXEL_Y = 1, PATH = 2;
+
+	/**
+	 * Samples the point of each pixel (the center of its coordinates).
+	 */
+	Sampler PIXEL_POINT = (x, y, index, dimension) -> 0.5;
+
+	/**
+	 * @param x         - the index of the x direction of the pixel.
+	 * @param y         - the index of the y direction of the pixel.
+	 * @param index     - the index of the sample in the sequence of the pixel.
+	 * @param dimension - the dimension of the coordinate.
+	 * @return the coordinate of the sample along the dimension, in [0, 1).
+	 */
+	double get(int x, int y, int index, int dimension);
+
+	/**
+	 * @return the number of dimensions get() takes.
+	 */
+	default int dimensions() {
+		return Integer.MAX_VALUE;
+	}
+}
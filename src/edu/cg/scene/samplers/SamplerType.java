@@ -0,0 +1,35 @@
+package edu.cg.scene.samplers;
+
+/**
+ * The sample sequences a scene can be rendered with.
+ */
+public enum SamplerType {
+	STRATIFIED("Stratified"), HALTON("Halton"), SOBOL("Sobol");
+
+	private final String displayName;
+
+	private SamplerType(String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * Creates a sampler of this type.
+	 * 
+	 * @param samplesPerPixel - the number of samples a pixel takes at most.
+	 */
+	public Sampler create(int samplesPerPixel) {
+		switch (this) {
+		case STRATIFIED:
+			return new StratifiedSampler(samplesPerPixel);
+		case HALTON:
+			return new HaltonSampler();
+		default:
+			return new SobolSampler();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return displayName;
+	}
+}
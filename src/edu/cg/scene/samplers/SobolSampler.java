@@ -0,0 +1,71 @@
+package edu.cg.scene.samplers;
+
+/**
+ * The Sobol sequence, Owen scrambled per pixel and dimension with the hash
+ * based nested uniform scrambling of Burley ("Practical Hash-based Owen
+ * Scrambling", 2020). The scrambling keeps the stratification of the sequence:
+ * the first 2^k samples of a pixel still fall one in each of 2^k intervals of
+ * each dimension, and dimensions 0 and 1 still form a (0, k, 2)-net.
+ */
+class SobolSampler implements Sampler {
+	// The degree s, the coefficients a and the initial direction numbers m of the
+	// primitive polynomials of dimensions 1, 2, ... (from Joe and Kuo), dimension
+	// 0 being the van der Corput sequence
+	private static final int[][] POLYNOMIALS = { { 1, 0, 1 }, { 2, 1, 1, 3 }, { 3, 1, 1, 3, 1 }, { 3, 2, 1, 1, 1 },
+			{ 4, 1, 1, 1, 3, 3 }, { 4, 4, 1, 3, 5, 13 }, { 5, 2, 1, 1, 5, 5, 17 }, { 5, 4, 1, 1, 5, 5, 5 },
+			{ 5, 7, 1, 1, 7, 11, 19 }, { 5, 11, 1, 1, 5, 1, 1 }, { 5, 13, 1, 1, 1, 3, 11 },
+			{ 5, 14, 1, 3, 5, 5, 31 } };
+	private static final int BITS = 32;
+
+	// DIRECTIONS[d][b] is the direction number of bit b of the index in dimension d
+	private static final int[][] DIRECTIONS = directions();
+
+	private static int[][] directions() {
+		int[][] res = new int[POLYNOMIALS.length + 1][BITS];
+		for (int b = 0; b < BITS; ++b)
+			res[0][b] = 1 << (BITS - 1 - b);
+		for (int d = 1; d < res.length; ++d) {
+			int[] polynomial = POLYNOMIALS[d - 1];
+			int s = polynomial[0], a = polynomial[1];
+			int[] v = res[d];
+			for (int b = 0; b < s; ++b)
+				v[b] = polynomial[2 + b] << (BITS - 1 - b);
+			for (int b = s; b < BITS; ++b) {
+				v[b] = v[b - s] ^ (v[b - s] >>> s);
+				for (int k = 1; k < s; ++k)
+					if (((a >>> (s - 1 - k)) & 1) != 0)
+						v[b] ^= v[b - k];
+			}
+		}
+		return res;
+	}
+
+	@Override
+	public double get(int x, int y, int index, int dimension) {
+		if (dimension >= DIRECTIONS.length)
+			throw new IllegalArgumentException("The Sobol sampler has " + DIRECTIONS.length + " dimensions");
+		int[] v = DIRECTIONS[dimension];
+		int bits = 0;
+		for (int b = 0, i = index; i != 0; ++b, i >>>= 1)
+			if ((i & 1) != 0)
+				bits ^= v[b];
+		bits = scramble(bits, Hashing.hash(x, y, dimension));
+		return (bits >>> 8) * 0x1p-24;
+	}
+
+	@Override
+	public int dimensions() {
+		return DIRECTIONS.length;
+	}
+
+	// Permutes the bits so that each bit is flipped depending on the bits above it
+	private static int scramble(int bits, int seed) {
+		int x = Integer.reverse(bits);
+		x ^= x * 0x3d20adea;
+		x += seed;
+		x *= (seed >>> 16) | 1;
+		x ^= x * 0x05526c56;
+		x ^= x * 0x53a22864;
+		return Integer.reverse(x);
+	}
+}
@@ -0,0 +1,25 @@
+package edu.cg.scene.samplers;
+
+/**
+ * Jittered stratified sampling. Each pair of dimensions (0 and 1, 2 and 3 and
+ * so on) is cut into a grid of about samplesPerPixel cells, and the samples of
+ * a pixel take the cells in turn, starting at a cell chosen per pixel and pair,
+ * at a random point of the cell.
+ */
+class StratifiedSampler implements Sampler {
+	private final int side;
+
+	StratifiedSampler(int samplesPerPixel) {
+		side = Math.max(1, (int) Math.ceil(Math.sqrt(samplesPerPixel)));
+	}
+
+	@Override
+	public double get(int x, int y, int index, int dimension) {
+		int pair = dimension / 2;
+		int cells = side * side;
+		int cell = Math.floorMod(index + Hashing.hash(x, y, pair), cells);
+		int stratum = dimension % 2 == 0 ? cell % side : cell / side;
+		double jitter = Hashing.toUnit(Hashing.hash(x, y, index, dimension));
+		return (stratum + jitter) / side;
+	}
+}
@@ -0,0 +1,180 @@
+package edu.cg.scene.accelerators;
+
+import java.util.Random;
+
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.accelerators.GeometryStore.Candidate;
+import edu.cg.scene.objects.AxisAlignedBox;
+import edu.cg.scene.objects.Material;
+import edu.cg.scene.objects.Shape;
+import edu.cg.scene.objects.Sphere;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * Checks that the vector kernels find bit for bit the distances of the scalar
+ * kernels, and that the scalar kernels find those of Sphere and
+ * AxisAlignedBox, as IntersectionKernels requires.
+ * 
+ * Random spheres and boxes (many of them on a half unit lattice, so that faces
+ * are shared) are tested against random rays, rays from points on the face
+ * planes and through the edges of the boxes, rays parallel to one or two axes
+ * (with +0 and -0 components) and rays with a zero direction. Every kernel is
+ * run over random ranges of the primitives, so the lanes and the scalar
+ * remainders of the vector kernels are both covered.
+ * 
+ * Usage: java --add-modules jdk.incubator.vector
+ * edu.cg.scene.accelerators.KernelCheck [rays [seed]] (100000 rays and seed 7
+ * by default). Exits with status 1 at the first mismatch.
+ */
+public class KernelCheck {
+	private static final int PRIMITIVES = 37;
+	// The many-ray kernels get batches of up to this many rays
+	private static final int BATCH = 21;
+
+	private final Random random;
+	private final GeometryStore store;
+	private final Shape[] spheres = new Shape[PRIMITIVES], boxes = new Shape[PRIMITIVES];
+	private final IntersectionKernels scalar = new ScalarKernels(), vector = new VectorKernels();
+	private long tests = 0;
+	// The sources and directions of the rays of the next batch, in columns
+	private final double[][] batch = new double[6][BATCH];
+	private int batchSize = 0;
+
+	public static void main(String[] args) {
+		int rays = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 7;
+		KernelCheck check = new KernelCheck(new Random(seed));
+		for (int i = 0; i < rays; ++i) {
+			Ray ray = check.ray(i % 4);
+			check.check(ray);
+			check.batch(ray);
+		}
+		System.out.println("OK: " + check.tests + " kernel results of " + rays + " rays against " + PRIMITIVES
+				+ " spheres and " + PRIMITIVES + " boxes agree (" + check.vector + ")");
+	}
+
+	private KernelCheck(Random random) {
+		this.random = random;
+		Surface[] surfaces = new Surface[2 * PRIMITIVES];
+		for (int i = 0; i < PRIMITIVES; ++i) {
+			spheres[i] = new Sphere(point(), 0.25 + random.nextInt(6) / 4.0);
+			// Every third box has two random corners, the others sides of whole half units
+			Point min = point();
+			boxes[i] = i % 3 == 0 ? new AxisAlignedBox(min, point())
+					: new AxisAlignedBox(min, new Point(min.x + (1 + random.nextInt(4)) / 2.0,
+							min.y + (1 + random.nextInt(4)) / 2.0, min.z + (1 + random.nextInt(4)) / 2.0));
+			spheres[i].compile();
+			boxes[i].compile();
+			surfaces[i] = new Surface(spheres[i], Material.getMetalMaterial());
+			surfaces[PRIMITIVES + i] = new Surface(boxes[i], Material.getMetalMaterial());
+		}
+		store = new GeometryStore(surfaces);
+		for (int i = 0; i < surfaces.length; ++i)
+			store.add(i);
+	}
+
+	// A random point, on the half unit lattice half of the time
+	private Point point() {
+		Point p = new Point(8 * random.nextDouble() - 4, 8 * random.nextDouble() - 4, 8 * random.nextDouble() - 4);
+		if (random.nextBoolean())
+			p = new Point(Math.round(2 * p.x) / 2.0, Math.round(2 * p.y) / 2.0, Math.round(2 * p.z) / 2.0);
+		return p;
+	}
+
+	/**
+	 * @param kind - 0 for a random ray, 1 for a ray from a face plane of a box
+	 *             through one of its edges, 2 for a ray parallel to one or two
+	 *             axes and 3 for a ray with a zero direction (half of the time)
+	 */
+	private Ray ray(int kind) {
+		Point o = point();
+		Vec d = new Vec(2 * random.nextDouble() - 1, 2 * random.nextDouble() - 1, 2 * random.nextDouble() - 1);
+		if (kind == 1) {
+			AxisAlignedBox box = (AxisAlignedBox) boxes[random.nextInt(PRIMITIVES)];
+			Point min = box.getMinPoint(), max = box.getMaxPoint();
+			o = new Point(random.nextBoolean() ? min.x : max.x, o.y, o.z);
+			Point edge = new Point(random.nextDouble() * (max.x - min.x) + min.x, random.nextBoolean() ? min.y : max.y,
+					random.nextBoolean() ? min.z : max.z);
+			d = edge.sub(o);
+		} else if (kind == 2) {
+			double zero = random.nextBoolean() ? 0.0 : -0.0;
+			int axes = random.nextInt(6);
+			d = new Vec(axes % 3 == 0 ? zero : d.x, axes % 3 == 1 ? zero : d.y, axes % 3 == 2 ? zero : d.z);
+			if (axes >= 3)
+				d = new Vec(axes == 3 ? d.x : zero, axes == 4 ? d.y : zero, axes == 5 ? d.z : zero);
+		} else if (kind == 3 && random.nextBoolean()) {
+			d = new Vec(0, 0, 0);
+		}
+		return new Ray(o, d);
+	}
+
+	private void check(Ray ray) {
+		int from = random.nextInt(PRIMITIVES), to = from + random.nextInt(PRIMITIVES - from + 1);
+		double tMax = random.nextBoolean() ? Double.POSITIVE_INFINITY : 12 * random.nextDouble();
+
+		Candidate s = new Candidate(tMax), v = new Candidate(tMax);
+		scalar.closestSphere(store, ray, from, to, s);
+		vector.closestSphere(store, ray, from, to, v);
+		same("closestSphere", ray, s.t, v.t, s.surface, v.surface);
+		same("anySphere", ray, scalar.anySphere(store, ray, from, to, tMax),
+				vector.anySphere(store, ray, from, to, tMax));
+		scalar.closestBox(store, ray, from, to, s.reset(tMax));
+		vector.closestBox(store, ray, from, to, v.reset(tMax));
+		same("closestBox", ray, s.t, v.t, s.surface, v.surface);
+		same("anyBox", ray, scalar.anyBox(store, ray, from, to, tMax), vector.anyBox(store, ray, from, to, tMax));
+
+		// The scalar kernels against the shapes, one primitive at a time
+		int i = random.nextInt(PRIMITIVES);
+		scalar.closestSphere(store, ray, i, i + 1, s.reset(Double.POSITIVE_INFINITY));
+		same("Sphere.distance", ray, spheres[i].distance(ray, Double.POSITIVE_INFINITY), s.t, 0, 0);
+		scalar.closestBox(store, ray, i, i + 1, s.reset(Double.POSITIVE_INFINITY));
+		same("AxisAlignedBox.distance", ray, boxes[i].distance(ray, Double.POSITIVE_INFINITY), s.t, 0, 0);
+	}
+
+	/**
+	 * Adds the ray to the batch, and once the batch has a random size checks the
+	 * many-ray kernels with it against a random sphere and box. A zero direction
+	 * (which Ray turns into NaN) is given as zero.
+	 */
+	private void batch(Ray ray) {
+		Point o = ray.source();
+		Vec d = ray.direction();
+		boolean zero = Double.isNaN(d.x) && Double.isNaN(d.y) && Double.isNaN(d.z);
+		double[] values = { o.x, o.y, o.z, zero ? 0 : d.x, zero ? 0 : d.y, zero ? 0 : d.z };
+		for (int c = 0; c < 6; ++c)
+			batch[c][batchSize] = values[c];
+		if (++batchSize < 1 + random.nextInt(BATCH))
+			return;
+		int n = batchSize, i = random.nextInt(PRIMITIVES);
+		batchSize = 0;
+		double[] s = new double[n], v = new double[n];
+		scalar.sphereDistances(batch[0], batch[1], batch[2], batch[3], batch[4], batch[5], n, store, i, s);
+		vector.sphereDistances(batch[0], batch[1], batch[2], batch[3], batch[4], batch[5], n, store, i, v);
+		for (int k = 0; k < n; ++k)
+			same("sphereDistances", null, s[k], v[k], 0, 0);
+		scalar.boxDistances(batch[0], batch[1], batch[2], batch[3], batch[4], batch[5], n, store, i, s);
+		vector.boxDistances(batch[0], batch[1], batch[2], batch[3], batch[4], batch[5], n, store, i, v);
+		for (int k = 0; k < n; ++k)
+			same("boxDistances", null, s[k], v[k], 0, 0);
+	}
+
+	private void same(String kernel, Ray ray, double t1, double t2, int surface1, int surface2) {
+		++tests;
+		if (Double.doubleToLongBits(t1) != Double.doubleToLongBits(t2) || surface1 != surface2)
+			fail(kernel, ray, t1 + " (surface " + surface1 + ") != " + t2 + " (surface " + surface2 + ")");
+	}
+
+	private void same(String kernel, Ray ray, boolean hit1, boolean hit2) {
+		++tests;
+		if (hit1 != hit2)
+			fail(kernel, ray, hit1 + " != " + hit2);
+	}
+
+	private static void fail(String kernel, Ray ray, String message) {
+		System.out.println("FAILED: " + kernel + " " + message
+				+ (ray == null ? "" : " for the ray from " + ray.source() + " along " + ray.direction()));
+		System.exit(1);
+	}
+}
@@ -0,0 +1,84 @@
+package edu.cg.scene;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.management.ThreadMXBean;
+
+import edu.cg.menu.GsonMaker;
+
+/**
+ * Checks that the render threads allocate next to nothing per pixel: the rays,
+ * path samples and colors of the shading are scratch of the render threads,
+ * so what is left is mostly the Hit the accelerator returns for each traced ray
+ * and the RGB array of each tile.
+ * 
+ * Each scene is rendered twice with its own settings, so the second render
+ * runs compiled code, and the bytes the threads other than the calling one
+ * allocated while the tiles of the second render were traced (between the
+ * "Rendering" and "Traced" log messages of Scene.render) are divided by the
+ * number of pixels.
+ * 
+ * Usage: java edu.cg.scene.AllocationCheck [scene.json ...] (the scenes under
+ * scenes by default). Exits with status 1 if a scene allocates more than
+ * MAX_BYTES_PER_PIXEL.
+ */
+public class AllocationCheck {
+	private static final int SIZE = 200;
+	private static final double VIEW_PLAIN_WIDTH = 4;
+	private static final long MAX_BYTES_PER_PIXEL = 128;
+
+	public static void main(String[] args) throws Exception {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.out.println("The JVM can't count the bytes its threads allocate.");
+			System.exit(1);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		File[] files = args.length > 0 ? Arrays.stream(args).map(File::new).toArray(File[]::new)
+				: new File("scenes").listFiles((dir, name) -> name.endsWith(".json"));
+		Arrays.sort(files);
+		boolean failed = false;
+		for (File file : files) {
+			Scene scene = GsonMaker.getInstance().fromJson(new String(Files.readAllBytes(file.toPath())), Scene.class);
+			long bytes = 0;
+			for (int render = 0; render < 2; ++render)
+				bytes = renderAllocations(scene, threads);
+			long perPixel = bytes / (SIZE * SIZE);
+			boolean ok = perPixel <= MAX_BYTES_PER_PIXEL;
+			failed |= !ok;
+			System.out.println(file.getName() + ": " + perPixel + " bytes per pixel" + (ok ? "" : " (FAILED)"));
+		}
+		System.out.println(failed ? "FAILED: more than " + MAX_BYTES_PER_PIXEL + " bytes per pixel" : "OK");
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * @return the number of bytes the render threads allocated while a render of
+	 *         the scene traced its tiles.
+	 */
+	private static long renderAllocations(Scene scene, ThreadMXBean threads) throws Exception {
+		long caller = Thread.currentThread().getId();
+		Map<Long, Long> start = new HashMap<>();
+		long[] bytes = new long[1];
+		// The logger runs on the calling thread, while the threads of the render are alive
+		scene.render(SIZE, SIZE, VIEW_PLAIN_WIDTH, message -> {
+			if (message.startsWith("Rendering ")) {
+				for (long id : threads.getAllThreadIds())
+					start.put(id, threads.getThreadAllocatedBytes(id));
+			} else if (message.startsWith("Traced ")) {
+				for (long id : threads.getAllThreadIds()) {
+					long allocated = threads.getThreadAllocatedBytes(id);
+					if (id != caller && allocated >= 0)
+						bytes[0] += allocated - start.getOrDefault(id, 0L);
+				}
+			}
+		});
+		return bytes[0];
+	}
+}